@@ -3,36 +3,40 @@ package ch.epfl.sdp.contamination;
 import android.location.Location;
 
 import org.junit.Before;
-import org.junit.Ignore;
 import org.junit.Test;
 
-import java.util.Calendar;
 import java.util.Date;
 import java.util.Map;
 
-import ch.epfl.sdp.identity.fragment.AccountFragment;
+import ch.epfl.sdp.utilities.VirtualClock;
 
 import static ch.epfl.sdp.TestTools.equalLatLong;
 import static ch.epfl.sdp.TestTools.newLoc;
-import static ch.epfl.sdp.TestTools.sleep;
 import static ch.epfl.sdp.contamination.Carrier.InfectionStatus.HEALTHY;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 public class ConcretePositionAggregatorTest {
+    private static final long WINDOW = PositionAggregator.WINDOW_FOR_LOCATION_AGGREGATION;
+
     private ConcretePositionAggregator aggregator;
     private FakeCachingDataSender sender;
+    private VirtualClock clock;
     private int timelap;
 
     @Before
     public void initTest() {
-        AccountFragment.IN_TEST = true;
         this.sender = new FakeCachingDataSender();
-        int maxNumberOfLoc = 66;//1000;
-        this.aggregator = new ConcretePositionAggregator(sender, new Layman(HEALTHY), maxNumberOfLoc);
+        int maxNumberOfLoc = 4;
+        this.clock = new VirtualClock(0);
+        this.aggregator = new ConcretePositionAggregator(sender, new Layman(HEALTHY), maxNumberOfLoc, clock);
         aggregator.updateToOnline();
         timelap = PositionAggregator.WINDOW_FOR_LOCATION_AGGREGATION / maxNumberOfLoc;
+        // Lets the first window go by without any position, the next positions fall in [WINDOW, 2 * WINDOW)
+        clock.advance(WINDOW);
     }
 
     @Test(expected = IllegalArgumentException.class)
@@ -60,37 +64,39 @@ public class ConcretePositionAggregatorTest {
         new ConcretePositionAggregator(new FakeCachingDataSender(), null);
     }
 
-    private void addAndWait(Location l, Date d) {
-        aggregator.addPosition(l, d);
-        sleep(timelap);
+    // The location is registered by the next tick of the timer
+    private void addAndWait(Location l) {
+        aggregator.addPosition(l);
+        clock.advance(timelap);
+    }
+
+    // The location is registered, then the window is closed
+    private void stayForAWindow(Location l) {
+        aggregator.addPosition(l);
+        clock.advance(WINDOW);
     }
 
     @Test
     public void noPositionAreUploadedWhileOffline() {
         this.aggregator.updateToOffline();
-        addAndWait(newLoc(0, 0), Calendar.getInstance().getTime());
-        addAndWait(newLoc(1, 1), new Date(Calendar.getInstance().getTimeInMillis() + PositionAggregator.WINDOW_FOR_LOCATION_AGGREGATION));
+        stayForAWindow(newLoc(0, 0));
+        stayForAWindow(newLoc(1, 1));
         Map<Date, Location> res = sender.getMap();
         assertNull(res);
     }
 
     @Test
-    @Ignore // this test takes 5 minutes to run
     public void uploadsPositionAtStarting() {
         //this test is here to catch the bug of the aggregator
-
-        AccountFragment.IN_TEST = false;
         Location loc1 = newLoc(1, 1);
 
         aggregator.addPosition(loc1);
-        sleep(PositionAggregator.WINDOW_FOR_LOCATION_AGGREGATION + 1000);
+        clock.advance(WINDOW + timelap);
         Map<Date, Location> firebaseLoc = sender.getMap();
         assertNotNull(firebaseLoc);
-
     }
 
-
-    private void initTestMean(Date now, Date now1, Date now2) {
+    private void initTestMean() {
         Location l1 = newLoc(0, 0);
         Location l2 = newLoc(10, 10);
 
@@ -102,25 +108,28 @@ public class ConcretePositionAggregatorTest {
         Location b1 = newLoc(6, 4);
         Location b2 = newLoc(7, 4);
         Location b3 = newLoc(8, 4);
-        sleep();
-        addAndWait(l1, now);
-        addAndWait(l2, now);
-        addAndWait(a1, now1);
-        addAndWait(a2, now1);
-        addAndWait(a3, now1);
-        addAndWait(a4, now1);
-        addAndWait(b1, now2);
-        addAndWait(b2, now2);
-        addAndWait(b3, now2);
-        addAndWait(l1, new Date(now2.getTime() + PositionAggregator.WINDOW_FOR_LOCATION_AGGREGATION));
+        // 4 ticks per window
+        addAndWait(l1);
+        addAndWait(l1);
+        addAndWait(l2);
+        addAndWait(l2);
+        addAndWait(a1);
+        addAndWait(a2);
+        addAndWait(a3);
+        addAndWait(a4);
+        addAndWait(b1);
+        addAndWait(b2);
+        addAndWait(b3);
+        addAndWait(b2);
+        addAndWait(l1);
     }
 
     @Test
     public void updatesTheCorrectMeanLocation() {
-        Date now = new Date(0);
-        Date now1 = new Date(PositionAggregator.WINDOW_FOR_LOCATION_AGGREGATION);
-        Date now2 = new Date(2 * PositionAggregator.WINDOW_FOR_LOCATION_AGGREGATION);
-        initTestMean(now, now1, now2);
+        Date now = new Date(WINDOW);
+        Date now1 = new Date(2 * WINDOW);
+        Date now2 = new Date(3 * WINDOW);
+        initTestMean();
 
         //TEST 1
         Map<Date, Location> firebaseLoc = sender.getMap();
@@ -135,7 +144,126 @@ public class ConcretePositionAggregatorTest {
         assertTrue(equalLatLong(firebaseLoc.get(now1), res2));
         // TEST 3
         Location res3 = newLoc(7, 4);
-        assertTrue(firebaseLoc.containsKey(now1));
+        assertTrue(firebaseLoc.containsKey(now2));
         assertTrue(equalLatLong(firebaseLoc.get(now2), res3));
     }
+
+    @Test
+    public void consecutiveWindowsInTheSameCellAreRegisteredAsOneDwell() {
+        stayForAWindow(newLoc(46.5, 6.6));
+        stayForAWindow(newLoc(46.5, 6.6));
+        stayForAWindow(newLoc(46.5, 6.6));
+        stayForAWindow(newLoc(10, 10));
+        stayForAWindow(newLoc(0, 0));
+
+        Map<Date, Location> firebaseLoc = sender.getMap();
+        assertNotNull(firebaseLoc);
+        assertTrue(firebaseLoc.containsKey(new Date(WINDOW)));
+        // The stay is only closed when leaving the cell
+        assertFalse(firebaseLoc.containsKey(new Date(2 * WINDOW)));
+        assertTrue(equalLatLong(firebaseLoc.get(new Date(3 * WINDOW)), newLoc(46.5, 6.6)));
+        assertTrue(firebaseLoc.containsKey(new Date(4 * WINDOW)));
+    }
+
+    @Test
+    public void openDwellsAreRegisteredPeriodically() {
+        int refreshWindows = (int) (ConcretePositionAggregator.DWELL_REFRESH_PERIOD / WINDOW);
+        for (int i = 0; i <= refreshWindows; ++i) {
+            stayForAWindow(newLoc(46.5, 6.6));
+        }
+
+        // Still in the cell, but the stay is visible until its last refresh
+        Map<Date, Location> firebaseLoc = sender.getMap();
+        assertNotNull(firebaseLoc);
+        assertTrue(firebaseLoc.containsKey(new Date(WINDOW + ConcretePositionAggregator.DWELL_REFRESH_PERIOD)));
+    }
+
+    @Test
+    public void closingRegistersTheOpenDwell() {
+        stayForAWindow(newLoc(46.5, 6.6));
+        stayForAWindow(newLoc(46.5, 6.6));
+        aggregator.addPosition(newLoc(46.5, 6.6));
+        aggregator.close();
+
+        Map<Date, Location> firebaseLoc = sender.getMap();
+        assertNotNull(firebaseLoc);
+        assertTrue(firebaseLoc.containsKey(new Date(WINDOW)));
+        assertTrue(firebaseLoc.containsKey(new Date(3 * WINDOW)));
+
+        // Nothing is registered anymore
+        stayForAWindow(newLoc(10, 10));
+        assertFalse(firebaseLoc.containsKey(new Date(4 * WINDOW)));
+    }
+
+    @Test
+    public void virtualClockReplaysWindowsWithoutWaiting() {
+        VirtualClock clock = new VirtualClock(0);
+        FakeCachingDataSender replaySender = new FakeCachingDataSender();
+        ConcretePositionAggregator replayed = new ConcretePositionAggregator(replaySender, new Layman(HEALTHY), 2, clock);
+        replayed.updateToOnline();
+
+        for (int i = 0; i < 10; ++i) {
+            replayed.addPosition(newLoc(i, i));
+            clock.advance(WINDOW);
+        }
+
+        Map<Date, Location> firebaseLoc = replaySender.getMap();
+        assertNotNull(firebaseLoc);
+        assertTrue(firebaseLoc.containsKey(new Date(0)));
+        assertTrue(firebaseLoc.containsKey(new Date(8 * WINDOW)));
+    }
+
+    @Test
+    public void gpsJumpsAreRejectedAtTheDefaultSamplingRate() {
+        VirtualClock clock = new VirtualClock(0);
+        FakeCachingDataSender jumpSender = new FakeCachingDataSender();
+        ConcretePositionAggregator sampled = new ConcretePositionAggregator(jumpSender, new Layman(HEALTHY),
+                PositionAggregator.MAXIMAL_NUMBER_OF_LOCATIONS_PER_AGGREGATION, clock);
+        sampled.updateToOnline();
+
+        // One fix per second, as requested by the LocationService, a few meters apart
+        int fixes = ConcretePositionAggregator.MAX_FIXES_PER_WINDOW;
+        for (int i = 0; i < fixes; ++i) {
+            // About 1km away in the middle of the window
+            Location fix = newLoc(i == fixes / 2 ? 46.51 : 46.5 + (i % 2) * 1e-5, 6.6);
+            fix.setAccuracy(5);
+            sampled.addPosition(fix);
+            clock.advance(1000);
+        }
+        clock.advance(WINDOW);
+
+        Map<Date, Location> firebaseLoc = jumpSender.getMap();
+        assertNotNull(firebaseLoc);
+        assertEquals(46.5, firebaseLoc.get(new Date(0)).getLatitude(), 1e-4);
+    }
+
+    @Test
+    public void positionWindowKeepsTheMostRecentFixesWhenFull() {
+        PositionWindow window = new PositionWindow(2);
+        window.add(0, 0, 0);
+        window.add(2, 4, 0);
+        window.add(4, 8, 0);
+
+        assertEquals(2, window.size());
+        assertEquals(3, window.meanLatitude(), 0);
+        assertEquals(6, window.meanLongitude(), 0);
+
+        window.clear();
+        assertTrue(window.isEmpty());
+    }
+
+    @Test
+    public void positionWindowWeightsFixesByAccuracyAndRejectsJumps() {
+        PositionWindow window = new PositionWindow(10);
+        window.add(46.5, 6.6, 5);
+        window.add(46.5001, 6.6, 10);
+        // 4 times less weight than the first fix
+        assertEquals(46.50002, window.meanLatitude(), 1e-9);
+
+        window.add(46.5, 6.6001, 5);
+        // About 1km away from fixes that spread over a few meters
+        assertFalse(window.add(46.51, 6.6, 8));
+        assertEquals(1, window.rejectedCount());
+        assertEquals(3, window.size());
+    }
 }
@@ -2,25 +2,40 @@ package ch.epfl.sdp.contamination.databaseIO;
 
 import android.location.Location;
 
+import com.google.firebase.firestore.DocumentReference;
+import com.google.firebase.firestore.WriteBatch;
+
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
 import java.util.SortedMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import ch.epfl.sdp.CoronaGame;
 import ch.epfl.sdp.contamination.Carrier;
 import ch.epfl.sdp.contamination.Layman;
 import ch.epfl.sdp.identity.User;
 import ch.epfl.sdp.identity.fragment.AccountFragment;
+import ch.epfl.sdp.utilities.VirtualClock;
 
 import static ch.epfl.sdp.TestTools.newLoc;
 import static ch.epfl.sdp.TestTools.sleep;
 import static ch.epfl.sdp.contamination.InfectionAnalyst.PRESYMPTOMATIC_CONTAGION_TIME;
+import static ch.epfl.sdp.firestore.FirestoreLabels.HISTORY_COLL;
+import static ch.epfl.sdp.firestore.FirestoreLabels.LAST_POSITIONS_COLL;
 import static ch.epfl.sdp.firestore.FirestoreLabels.publicAlertAttribute;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 public class CachingDataSenderTest {
@@ -106,6 +121,229 @@ public class CachingDataSenderTest {
         assertEquals(loc1.getLongitude(), 0.0, 0.00001);
     }
 
+    @Test
+    public void trajectoryCompressorOnlyKeepsTurningPoints() {
+        TrajectoryCompressor<Integer> compressor = new TrajectoryCompressor<>(10, 15);
+        List<Integer> kept = new ArrayList<>();
+        // North at constant speed, then east
+        for (int i = 0; i < 10; ++i) {
+            Optional.ofNullable(compressor.add(i * 20_000L, 46.5 + i * 0.0005, 6.6, i)).ifPresent(kept::add);
+        }
+        for (int i = 10; i < 15; ++i) {
+            Optional.ofNullable(compressor.add(i * 20_000L, 46.5045, 6.6 + (i - 9) * 0.0005, i)).ifPresent(kept::add);
+        }
+        kept.add(compressor.flush());
+
+        assertEquals(Arrays.asList(0, 9, 14), kept);
+        assertNull(compressor.flush());
+    }
+
+    @Test
+    public void uploadQueueThinsOldWindowsWhenFullAndPersistsThem() {
+        String filename = "test_pending_uploads.bin";
+        new File(CoronaGame.getContext().getFilesDir(), filename).delete();
+        UploadQueue queue = new UploadQueue(CoronaGame.getContext(), filename, 8);
+        Carrier me = new Layman(Carrier.InfectionStatus.HEALTHY);
+        for (int i = 0; i < 9; ++i) {
+            queue.offer(new Date(i * 1000), UploadQueue.PendingUpload.window(i, i, me));
+        }
+
+        // Every other window of the oldest half was dropped to make room
+        assertEquals(7, queue.size());
+        assertEquals(Arrays.asList(new Date(0), new Date(2000)), new ArrayList<>(queue.oldest(2).keySet()));
+
+        queue.remove(new ArrayList<>(queue.oldest(3).keySet()));
+        UploadQueue reopened = new UploadQueue(CoronaGame.getContext(), filename, 8);
+        assertEquals(4, reopened.size());
+        assertEquals(new Date(5000), reopened.oldest(1).firstKey());
+        new File(CoronaGame.getContext().getFilesDir(), filename).delete();
+    }
+
+    @Test
+    public void coalescingWriterOnlyWritesTheLatestValuePerInterval() {
+        VirtualClock clock = new VirtualClock(0);
+        List<Integer> written = new ArrayList<>();
+        CoalescingWriter<Integer> writer = new CoalescingWriter<>(value -> {
+            written.add(value);
+            return CompletableFuture.completedFuture(null);
+        }, clock, 60);
+
+        writer.submit(1);
+        clock.advance(20);
+        CompletableFuture<Void> second = writer.submit(2);
+        CompletableFuture<Void> third = writer.submit(3);
+        assertFalse(second.isDone());
+        clock.advance(40);
+
+        assertTrue(second.isDone() && third.isDone());
+        assertEquals(Arrays.asList(1, 3), written);
+    }
+
+    @Test
+    public void recentPositionsEvictExpiredOnesAndServeLaterOnes() {
+        RecentPositions positions = new RecentPositions(100);
+        for (long t = 0; t < 200; t += 10) {
+            positions.add(t, t, 0, t);
+        }
+        // Out of order
+        positions.add(155, 1, 1, 190);
+
+        SortedMap<Date, Location> recent = positions.since(0, 190);
+        assertEquals(11, recent.size());
+        assertEquals(new Date(100), recent.firstKey());
+        assertEquals(Arrays.asList(new Date(150), new Date(155), new Date(160)),
+                new ArrayList<>(recent.subMap(new Date(150), new Date(170)).keySet()));
+        assertEquals(170, positions.since(170, 190).get(new Date(170)).getLatitude(), 0);
+        assertTrue(positions.since(0, 300).isEmpty());
+    }
+
+    @Test
+    public void failedBatchesAndStaysAreQueuedAndReplayed() {
+        VirtualClock clock = new VirtualClock(System.currentTimeMillis());
+        AtomicBoolean isReachable = new AtomicBoolean(false);
+        ConcreteCachingDataSender sender = new ConcreteCachingDataSender(new GridFirestoreInteractor() {
+            @Override
+            public CompletableFuture<Void> commitBatch(WriteBatch batch) {
+                CompletableFuture<Void> future = new CompletableFuture<>();
+                if (isReachable.get()) {
+                    future.complete(null);
+                } else {
+                    future.completeExceptionally(new IllegalStateException());
+                }
+                return future;
+            }
+
+            @Override
+            public CompletableFuture<Void> gridDwell(Location location, long start, long end) {
+                return commitBatch(null);
+            }
+        }, clock, Runnable::run);
+        sender.onConnectivityChanged(true);
+        clock.advance(10 * 60 * 1000);
+        int queued = sender.pendingUploadCount();
+
+        Layman me = new Layman(Carrier.InfectionStatus.HEALTHY);
+        long now = clock.currentTimeMillis();
+        sender.setUploadBatching(2, 60_000);
+        sender.registerLocation(me, newLoc(1, 1), new Date(now));
+        sender.registerLocation(me, newLoc(1, 2), new Date(now + 1));
+        sender.setUploadBatching(1, 0);
+        sender.registerDwell(me, newLoc(1, 2), new Date(now + 1), new Date(now + 2));
+        assertEquals(queued + 3, sender.pendingUploadCount());
+
+        isReachable.set(true);
+        sender.onConnectivityChanged(true);
+        clock.advance(10 * 60 * 1000);
+        assertEquals(0, sender.pendingUploadCount());
+    }
+
+    @Test
+    public void closingCommitsThePendingBatch() {
+        VirtualClock clock = new VirtualClock(System.currentTimeMillis());
+        List<WriteBatch> committed = new ArrayList<>();
+        ConcreteCachingDataSender sender = new ConcreteCachingDataSender(new GridFirestoreInteractor() {
+            @Override
+            public CompletableFuture<Void> commitBatch(WriteBatch batch) {
+                committed.add(batch);
+                return CompletableFuture.completedFuture(null);
+            }
+        }, clock, Runnable::run);
+        sender.setUploadBatching(16, 60_000);
+        sender.registerLocation(new Layman(Carrier.InfectionStatus.HEALTHY), newLoc(1, 1),
+                new Date(clock.currentTimeMillis()));
+        assertTrue(committed.isEmpty());
+
+        sender.close();
+        assertEquals(1, committed.size());
+    }
+
+    @Test
+    public void closingUploadsThePositionHeldBackByTheHistoryCompression() {
+        VirtualClock clock = new VirtualClock(System.currentTimeMillis());
+        List<DocumentReference> historyWrites = new ArrayList<>();
+        ConcreteCachingDataSender sender = new ConcreteCachingDataSender(new GridFirestoreInteractor() {
+            @Override
+            public CompletableFuture<Void> commitBatch(WriteBatch batch) {
+                return CompletableFuture.completedFuture(null);
+            }
+
+            @Override
+            public CompletableFuture<Void> writeDocumentWithID(DocumentReference reference, Object document) {
+                if (reference.getPath().startsWith(HISTORY_COLL)) {
+                    historyWrites.add(reference);
+                }
+                return CompletableFuture.completedFuture(null);
+            }
+        }, clock, Runnable::run);
+        sender.setHistoryCompression(10);
+        Layman me = new Layman(Carrier.InfectionStatus.HEALTHY);
+        long now = clock.currentTimeMillis();
+        // Straight north at constant speed: only the first position is uploaded right away
+        for (int i = 0; i < 3; ++i) {
+            sender.registerLocation(me, newLoc(46.5 + i * 0.0005, 6.6), new Date(now + i * 20_000));
+        }
+        assertTrue(historyWrites.isEmpty());
+
+        sender.close();
+        assertEquals(1, historyWrites.size());
+        assertTrue(historyWrites.get(0).getPath().endsWith("TS" + (now + 40_000)));
+    }
+
+    // Sender whose commits succeed, recording its writes to LastPositions
+    private static ConcreteCachingDataSender lastPositionsSender(VirtualClock clock, List<DocumentReference> lastPositionWrites) {
+        return new ConcreteCachingDataSender(new GridFirestoreInteractor() {
+            @Override
+            public CompletableFuture<Void> commitBatch(WriteBatch batch) {
+                return CompletableFuture.completedFuture(null);
+            }
+
+            @Override
+            public CompletableFuture<Void> writeDocumentWithID(DocumentReference reference, Object document) {
+                if (reference.getPath().startsWith(LAST_POSITIONS_COLL)) {
+                    lastPositionWrites.add(reference);
+                }
+                return CompletableFuture.completedFuture(null);
+            }
+        }, clock, Runnable::run);
+    }
+
+    @Test
+    public void closingWritesTheDelayedLastPosition() {
+        VirtualClock clock = new VirtualClock(System.currentTimeMillis());
+        List<DocumentReference> lastPositionWrites = new ArrayList<>();
+        ConcreteCachingDataSender sender = lastPositionsSender(clock, lastPositionWrites);
+        sender.setLastPositionInterval(60_000);
+        Layman me = new Layman(Carrier.InfectionStatus.HEALTHY);
+        long now = clock.currentTimeMillis();
+        sender.registerLocation(me, newLoc(1, 1), new Date(now));
+        sender.registerLocation(me, newLoc(1, 2), new Date(now + 1));
+        assertEquals(1, lastPositionWrites.size());
+
+        sender.close();
+        assertEquals(2, lastPositionWrites.size());
+    }
+
+    @Test
+    public void drainingTheQueueWritesTheLastPosition() {
+        VirtualClock clock = new VirtualClock(System.currentTimeMillis());
+        List<DocumentReference> lastPositionWrites = new ArrayList<>();
+        ConcreteCachingDataSender sender = lastPositionsSender(clock, lastPositionWrites);
+        // Replays what previous tests left in the queue
+        sender.onConnectivityChanged(true);
+        clock.advance(10 * 60 * 1000);
+        lastPositionWrites.clear();
+
+        sender.onConnectivityChanged(false);
+        Layman me = new Layman(Carrier.InfectionStatus.HEALTHY);
+        sender.registerLocation(me, newLoc(1, 1), new Date(clock.currentTimeMillis()));
+        assertTrue(lastPositionWrites.isEmpty());
+
+        sender.onConnectivityChanged(true);
+        clock.advance(10 * 60 * 1000);
+        assertEquals(0, sender.pendingUploadCount());
+        assertEquals(1, lastPositionWrites.size());
+    }
+
     @Test(expected = IllegalArgumentException.class)
     public void stringToLocAcceptsOnlyTuples() {
         ConcreteCachingDataSender.stringToLocation("1.235,2.235,6.5");
@@ -6,39 +6,59 @@ import android.widget.TextView;
 
 import androidx.test.rule.ActivityTestRule;
 
+import com.google.firebase.firestore.DocumentReference;
 import com.google.firebase.firestore.QueryDocumentSnapshot;
 import com.google.firebase.firestore.QuerySnapshot;
+import com.google.firebase.firestore.WriteBatch;
 
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.junit.MockitoJUnit;
 import org.mockito.junit.MockitoRule;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import ch.epfl.sdp.R;
 import ch.epfl.sdp.TestTools;
 import ch.epfl.sdp.contamination.Carrier;
 import ch.epfl.sdp.contamination.Layman;
+import ch.epfl.sdp.contamination.PositionAggregator;
 import ch.epfl.sdp.testActivities.DataExchangeActivity;
+import ch.epfl.sdp.utilities.VirtualClock;
 
 import static androidx.test.espresso.Espresso.onView;
 import static androidx.test.espresso.assertion.ViewAssertions.matches;
 import static androidx.test.espresso.matcher.ViewMatchers.assertThat;
 import static androidx.test.espresso.matcher.ViewMatchers.withId;
 import static androidx.test.espresso.matcher.ViewMatchers.withText;
+import static ch.epfl.sdp.firestore.FirestoreLabels.DWELL_END_TAG;
+import static ch.epfl.sdp.firestore.FirestoreLabels.ILLNESS_PROBABILITY_TAG;
+import static ch.epfl.sdp.firestore.FirestoreLabels.INFECTION_STATUS_TAG;
+import static ch.epfl.sdp.firestore.FirestoreLabels.UNIQUE_ID_TAG;
+import static ch.epfl.sdp.firestore.FirestoreLabels.UNIXTIME_TAG;
+import static ch.epfl.sdp.firestore.FirestoreLabels.UNIXTIME_VALUE_TAG;
 import static ch.epfl.sdp.location.LocationUtils.buildLocation;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.Matchers.greaterThan;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class GridSenderTest {
@@ -66,6 +86,8 @@ public class GridSenderTest {
     @Mock
     private QuerySnapshot timesListSnapshot;
     @Mock
+    private WriteBatch batch;
+    @Mock
     private QueryDocumentSnapshot range1DocumentSnapshot;
     @Mock
     private QueryDocumentSnapshot range2DocumentSnapshot;
@@ -110,7 +132,7 @@ public class GridSenderTest {
     public void dataSenderUploadsInformation() {
         programSenderAction(new MockGridInteractor() {
             @Override
-            public CompletableFuture<Void> gridWrite(Location location, String time, Carrier carrier) {
+            public CompletableFuture<Void> commitBatch(WriteBatch batch) {
                 return CompletableFuture.completedFuture(null);
             }
         });
@@ -124,7 +146,7 @@ public class GridSenderTest {
 
         programSenderAction(new MockGridInteractor() {
             @Override
-            public CompletableFuture<Void> gridWrite(Location location, String time, Carrier carrier) {
+            public CompletableFuture<Void> commitBatch(WriteBatch batch) {
                 CompletableFuture<Void> failedFuture = new CompletableFuture<>();
                 failedFuture.completeExceptionally(new IllegalArgumentException());
                 return failedFuture;
@@ -135,6 +157,30 @@ public class GridSenderTest {
         onView(withId(R.id.exchange_status)).check(matches(withText("EXCHANGE Failed")));
     }
 
+    @Test
+    public void batchedWindowsAreCommittedTogether() {
+        AtomicInteger commits = new AtomicInteger();
+        programSenderAction(new MockGridInteractor() {
+            @Override
+            public CompletableFuture<Void> commitBatch(WriteBatch batch) {
+                commits.incrementAndGet();
+                return CompletableFuture.completedFuture(null);
+            }
+        });
+        ConcreteCachingDataSender sender = (ConcreteCachingDataSender) mActivityRule.getActivity().getService().getSender();
+        sender.setUploadBatching(3, 60_000);
+
+        Carrier me = new Layman(Carrier.InfectionStatus.HEALTHY);
+        CompletableFuture<Void> first = sender.registerLocation(me, buildLocation(10, 20), new Date(rangeStart));
+        sender.registerLocation(me, buildLocation(10, 21), new Date(rangeEnd));
+        assertThat(first.isDone(), is(false));
+        CompletableFuture<Void> last = sender.registerLocation(me, buildLocation(10, 22), new Date(outsideRange));
+
+        assertThat(commits.get(), is(1));
+        assertThat(first.isDone() && last.isDone(), is(true));
+        sender.setUploadBatching(1, 0);
+    }
+
     @Test
     public void dataReceiverFindsContacts() {
         TestTools.resetLocationServiceStatus(mActivityRule.getActivity().getService());
@@ -142,7 +188,7 @@ public class GridSenderTest {
         /*((ConcreteDataReceiver) mActivityRule.getActivity().getService().getReceiver())
                 .setInteractor(new MockGridInteractor() {
                     @Override
-                    public CompletableFuture<Map<String, Map<String, Object>>> gridRead(Location location, long time) {
+                    public CompletableFuture<Map<String, Map<String, Object>>> gridRead(String cell, long time) {
                         return CompletableFuture.completedFuture(stringMapMap);
                     }
                 });*/
@@ -175,6 +221,195 @@ public class GridSenderTest {
                 });
     }
 
+    @Test
+    public void dataReceiverOnlyQueriesTheTimesOfTheInterval() {
+        List<Long> queried = new ArrayList<>();
+        ConcreteDataReceiver receiver = new ConcreteDataReceiver(new MockGridInteractor() {
+            @Override
+            CompletableFuture<Map<String, Map<String, Object>>> getCellTimes(String cell, long start, long end) {
+                queried.addAll(Arrays.asList(start, end));
+                return CompletableFuture.completedFuture(timesSlice(rangeStart, null));
+            }
+
+            @Override
+            public CompletableFuture<Map<String, Map<String, Object>>> gridRead(String cell, long time) {
+                return CompletableFuture.completedFuture(neighborSlice());
+            }
+        });
+
+        Map<Carrier, Integer> met = receiver.getUserNearbyDuring(buildLocation(46.5191, 6.5668),
+                new Date(rangeStart), new Date(rangeEnd)).join();
+        assertThat(queried, is(Arrays.asList(rangeStart, rangeEnd)));
+        assertThat(met.size(), is(1));
+    }
+
+    @Test
+    public void dwellingNeighborIsFoundMidStay() {
+        long window = PositionAggregator.WINDOW_FOR_LOCATION_AGGREGATION;
+        List<Long> slicesRead = new ArrayList<>();
+        ConcreteDataReceiver receiver = new ConcreteDataReceiver(new MockGridInteractor() {
+            @Override
+            CompletableFuture<Map<String, Map<String, Object>>> getCellTimes(String cell, long start, long end) {
+                // A stay of 10 windows, written at its start only
+                return CompletableFuture.completedFuture(timesSlice(rangeStart, rangeStart + 10 * window));
+            }
+
+            @Override
+            public CompletableFuture<Map<String, Map<String, Object>>> gridRead(String cell, long time) {
+                slicesRead.add(time);
+                return CompletableFuture.completedFuture(neighborSlice());
+            }
+        });
+        Location location = buildLocation(46.5191, 6.5668);
+
+        Set<Carrier> midStay = receiver.getUserNearby(location, new Date(rangeStart + 5 * window)).join();
+        assertThat(midStay.size(), is(1));
+        assertThat(midStay.iterator().next().getUniqueId(), is("neighbor"));
+        assertThat(slicesRead, is(Collections.singletonList(rangeStart)));
+        assertThat(receiver.getUserNearby(location, new Date(rangeStart + 11 * window)).join().isEmpty(), is(true));
+    }
+
+    @Test
+    public void carrierIsMetOnceWhateverTheIdsOfItsDocuments() {
+        ConcreteDataReceiver receiver = new ConcreteDataReceiver(new MockGridInteractor() {
+            @Override
+            CompletableFuture<Map<String, Map<String, Object>>> getCellTimes(String cell, long start, long end) {
+                return CompletableFuture.completedFuture(timesSlice(rangeStart, null));
+            }
+
+            @Override
+            public CompletableFuture<Map<String, Map<String, Object>>> gridRead(String cell, long time) {
+                // Written with its unique ID, and with a generated ID by an older version
+                Map<String, Map<String, Object>> slice = new HashMap<>(neighborSlice());
+                slice.put("generatedId", neighborSlice().get("neighbor"));
+                return CompletableFuture.completedFuture(slice);
+            }
+        });
+
+        Map<Carrier, Integer> met = receiver.getUserNearbyDuring(buildLocation(46.5191, 6.5668),
+                new Date(rangeStart), new Date(rangeEnd)).join();
+        assertThat(met.size(), is(1));
+        assertThat(met.values().iterator().next(), is(1));
+    }
+
+    @Test
+    public void closedGridSlicesAreReadOnce() {
+        AtomicInteger reads = new AtomicInteger();
+        VirtualClock clock = new VirtualClock(rangeEnd);
+        ConcreteDataReceiver receiver = new ConcreteDataReceiver(new MockGridInteractor() {
+            @Override
+            CompletableFuture<Map<String, Map<String, Object>>> getCellTimes(String cell, long start, long end) {
+                return CompletableFuture.completedFuture(timesSlice(rangeEnd, null));
+            }
+
+            @Override
+            public CompletableFuture<Map<String, Map<String, Object>>> gridRead(String cell, long time) {
+                reads.incrementAndGet();
+                return CompletableFuture.completedFuture(neighborSlice());
+            }
+        }, clock);
+        Location location = buildLocation(46.5191, 6.5668);
+
+        // The window may still be written
+        receiver.getUserNearby(location, new Date(rangeEnd)).join();
+        receiver.getUserNearby(location, new Date(rangeEnd)).join();
+        assertThat(reads.get(), is(2));
+
+        clock.advance(PositionAggregator.WINDOW_FOR_LOCATION_AGGREGATION);
+        receiver.getUserNearby(location, new Date(rangeEnd)).join();
+        assertThat(receiver.getUserNearby(location, new Date(rangeEnd)).join().size(), is(1));
+        assertThat(reads.get(), is(3));
+        assertThat(receiver.getSliceCache().hitCount(), is(1L));
+        assertThat(receiver.getSliceCache().missCount(), is(1L));
+    }
+
+    @Test
+    public void legacyCellsAreReadWithoutTheTimeFilter() {
+        List<String> cellsRead = new ArrayList<>();
+        ConcreteDataReceiver receiver = new ConcreteDataReceiver(new MockGridInteractor() {
+            @Override
+            public CompletableFuture<Map<String, Map<String, Object>>> getTimes(String cell, long start, long end) {
+                cellsRead.add(cell);
+                if (!cell.startsWith(GridFirestoreInteractor.LEGACY_CELL_PREFIX)) {
+                    return CompletableFuture.completedFuture(Collections.emptyMap());
+                }
+                // Written by a previous version, without the numeric time
+                Map<String, Object> timeDocument = new HashMap<>();
+                timeDocument.put(UNIXTIME_TAG, String.valueOf(rangeStart));
+                return CompletableFuture.completedFuture(Collections.singletonMap(String.valueOf(rangeStart), timeDocument));
+            }
+
+            @Override
+            public CompletableFuture<Map<String, Map<String, Object>>> gridRead(String cell, long time) {
+                return CompletableFuture.completedFuture(neighborSlice());
+            }
+        });
+
+        Map<Carrier, Integer> met = receiver.getUserNearbyDuring(buildLocation(46.5191, 6.5668),
+                new Date(rangeStart), new Date(rangeEnd)).join();
+        assertThat(new HashSet<>(cellsRead), is(new HashSet<>(Arrays.asList(
+                "u0k8tktc", "u0k8tkt8", "u0k8tktb", "u0k8tkt9", "u0k8tktd", "u0k8tktf", "Grid#46519#6566"))));
+        assertThat(met.size(), is(1));
+    }
+
+    @Test
+    public void nearbyCellsOnlyIncludeTheNeighboursWithinContactRadius() {
+        assertThat(GeoHash.encode(57.64911, 10.40744, 11), is("u4pruydqqvj"));
+        // Center of the cell u0k8tkt
+        assertThat(GeoHash.cellsAround(46.5191, 6.5668, 20, 7), is(Collections.singleton("u0k8tkt")));
+        // A few meters from the corner of four cells
+        assertThat(GeoHash.cellsAround(0.00001, 0.00001, 20, 7),
+                is(new HashSet<>(Arrays.asList("s000000", "7zzzzzz", "kpbpbpb", "ebpbpbp"))));
+    }
+
+    @Test
+    public void gridCellsKeepTheContactRadius() {
+        Location location = buildLocation(46.5191, 6.5668);
+        assertThat(GridFirestoreInteractor.getGridId(location), is(MockGridInteractor.CELL));
+        // Cells of 38 m by 19 m: the neighbours within 20 m are read as well
+        assertThat(GridFirestoreInteractor.getNearbyGridIds(location), is(new HashSet<>(Arrays.asList(
+                "u0k8tktc", "u0k8tkt8", "u0k8tktb", "u0k8tkt9", "u0k8tktd", "u0k8tktf", "Grid#46519#6566"))));
+    }
+
+    @Test
+    public void presencesAreWrittenToTheLegacyCellsAsWell() {
+        Location location = buildLocation(46.5191, 6.5668);
+        GridFirestoreInteractor interactor = new GridFirestoreInteractor();
+        interactor.gridWrite(batch, location, String.valueOf(rangeStart), new Layman(Carrier.InfectionStatus.HEALTHY));
+        interactor.gridDwell(batch, location, rangeStart, rangeEnd);
+
+        // Time and carrier documents, then the dwell, in both cells
+        ArgumentCaptor<DocumentReference> written = ArgumentCaptor.forClass(DocumentReference.class);
+        verify(batch, times(6)).set(written.capture(), any());
+        Set<String> cells = written.getAllValues().stream()
+                .map(reference -> reference.getPath().split("/")[1])
+                .collect(Collectors.toSet());
+        assertThat(cells, is(new HashSet<>(Arrays.asList(MockGridInteractor.CELL, "Grid#46519#6566"))));
+    }
+
+    @Test
+    public void carriersWrittenToBothKindsOfCellsAreMetOnce() {
+        ConcreteDataReceiver receiver = new ConcreteDataReceiver(new MockGridInteractor() {
+            @Override
+            public CompletableFuture<Map<String, Map<String, Object>>> getTimes(String cell, long start, long end) {
+                if (cell.equals(CELL) || cell.startsWith(GridFirestoreInteractor.LEGACY_CELL_PREFIX)) {
+                    return CompletableFuture.completedFuture(timesSlice(rangeStart, null));
+                }
+                return CompletableFuture.completedFuture(Collections.emptyMap());
+            }
+
+            @Override
+            public CompletableFuture<Map<String, Map<String, Object>>> gridRead(String cell, long time) {
+                return CompletableFuture.completedFuture(neighborSlice());
+            }
+        });
+
+        Map<Carrier, Integer> met = receiver.getUserNearbyDuring(buildLocation(46.5191, 6.5668),
+                new Date(rangeStart), new Date(rangeEnd)).join();
+        assertThat(met.size(), is(1));
+        assertThat(met.values().iterator().next(), is(1));
+    }
+
     @Test
     public void laymanEqualityTest() {
         // This test ensures that Layman properly overrides equals and hashCode methods
@@ -198,10 +433,44 @@ public class GridSenderTest {
         TestTools.sleep(1000);
     }
 
+    private static Map<String, Map<String, Object>> neighborSlice() {
+        Map<String, Object> neighbor = new HashMap<>();
+        neighbor.put(INFECTION_STATUS_TAG, Carrier.InfectionStatus.HEALTHY.toString());
+        neighbor.put(ILLNESS_PROBABILITY_TAG, 0d);
+        neighbor.put(UNIQUE_ID_TAG, "neighbor");
+        return Collections.singletonMap("neighbor", neighbor);
+    }
+
+    private static Map<String, Map<String, Object>> timesSlice(long time, Long dwellEnd) {
+        Map<String, Object> timeDocument = new HashMap<>();
+        timeDocument.put(UNIXTIME_VALUE_TAG, time);
+        if (dwellEnd != null) {
+            timeDocument.put(DWELL_END_TAG, String.valueOf(dwellEnd));
+        }
+        return Collections.singletonMap(String.valueOf(time), timeDocument);
+    }
+
     static class MockGridInteractor extends GridFirestoreInteractor {
 
+        // Cell of the location (46.5191, 6.5668) used by the tests
+        static final String CELL = "u0k8tktc";
+
         MockGridInteractor() {
             super();
         }
+
+        // Nothing was written in the legacy cells and in the neighbouring cells, unless getTimes()
+        // is overridden
+        @Override
+        public CompletableFuture<Map<String, Map<String, Object>>> getTimes(String cell, long start, long end) {
+            if (!cell.equals(CELL)) {
+                return CompletableFuture.completedFuture(Collections.emptyMap());
+            }
+            return getCellTimes(cell, start, end);
+        }
+
+        CompletableFuture<Map<String, Map<String, Object>>> getCellTimes(String cell, long start, long end) {
+            return super.getTimes(cell, start, end);
+        }
     }
 }
\ No newline at end of file
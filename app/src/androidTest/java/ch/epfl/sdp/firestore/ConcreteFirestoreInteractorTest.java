@@ -0,0 +1,149 @@
+package ch.epfl.sdp.firestore;
+
+import com.google.android.gms.tasks.OnFailureListener;
+import com.google.android.gms.tasks.OnSuccessListener;
+import com.google.android.gms.tasks.Task;
+import com.google.firebase.firestore.CollectionReference;
+import com.google.firebase.firestore.DocumentReference;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.Query;
+import com.google.firebase.firestore.QuerySnapshot;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ConcreteFirestoreInteractorTest {
+
+    @Rule
+    public MockitoRule mockitoRule = MockitoJUnit.rule();
+
+    @Mock
+    private DocumentReference reference;
+    @Mock
+    private Task<DocumentSnapshot> documentTask;
+    @Mock
+    private DocumentSnapshot document;
+    @Mock
+    private Query query;
+    @Mock
+    private CollectionReference collectionReference;
+    @Mock
+    private Task<QuerySnapshot> collectionTask;
+    @Mock
+    private QuerySnapshot collection;
+
+    // Listeners registered on the tasks, called to complete them
+    private OnSuccessListener<DocumentSnapshot> documentSuccess;
+    private OnFailureListener documentFailure;
+    private OnSuccessListener<QuerySnapshot> collectionSuccess;
+
+    @Before
+    public void setUp() {
+        Map<String, Object> data = new HashMap<>();
+        data.put("value", "success");
+        when(document.exists()).thenReturn(true);
+        when(document.getData()).thenReturn(data);
+        when(document.getId()).thenReturn("DownloadTest");
+        when(collection.isEmpty()).thenReturn(false);
+        when(collection.getDocuments()).thenReturn(Collections.singletonList(document));
+
+        // The tasks stay pending until a listener is called
+        when(reference.get()).thenReturn(documentTask);
+        when(documentTask.addOnSuccessListener(any(OnSuccessListener.class))).thenAnswer(invocation -> {
+            documentSuccess = invocation.getArgument(0);
+            return documentTask;
+        });
+        when(documentTask.addOnFailureListener(any(OnFailureListener.class))).thenAnswer(invocation -> {
+            documentFailure = invocation.getArgument(0);
+            return documentTask;
+        });
+        when(query.get()).thenReturn(collectionTask);
+        when(collectionReference.get()).thenReturn(collectionTask);
+        when(collectionTask.addOnSuccessListener(any(OnSuccessListener.class))).thenAnswer(invocation -> {
+            collectionSuccess = invocation.getArgument(0);
+            return collectionTask;
+        });
+        when(collectionTask.addOnFailureListener(any(OnFailureListener.class))).thenReturn(collectionTask);
+    }
+
+    @Test
+    public void concurrentIdenticalDocumentReadsShareOneRequest() {
+        CompletableFuture<Map<String, Object>> first = new ConcreteFirestoreInteractor().readDocument(reference);
+        CompletableFuture<Map<String, Object>> second = new ConcreteFirestoreInteractor().readDocument(reference);
+        verify(reference, times(1)).get();
+        assertFalse(first.isDone());
+
+        documentSuccess.onSuccess(document);
+        assertEquals("success", first.join().get("value"));
+        assertEquals("success", second.join().get("value"));
+
+        // Once done, the read is performed again
+        new ConcreteFirestoreInteractor().readDocument(reference);
+        verify(reference, times(2)).get();
+    }
+
+    @Test
+    public void eachReaderGetsItsOwnModifiableDocument() {
+        CompletableFuture<Map<String, Object>> first = new ConcreteFirestoreInteractor().readDocument(reference);
+        CompletableFuture<Map<String, Object>> second = new ConcreteFirestoreInteractor().readDocument(reference);
+        documentSuccess.onSuccess(document);
+
+        assertNotSame(first.join(), second.join());
+        first.join().put("value", "modified");
+        assertEquals("success", second.join().get("value"));
+    }
+
+    @Test
+    public void failuresAreSharedAndNotKept() {
+        CompletableFuture<Map<String, Object>> first = new ConcreteFirestoreInteractor().readDocument(reference);
+        CompletableFuture<Map<String, Object>> second = new ConcreteFirestoreInteractor().readDocument(reference);
+        documentFailure.onFailure(new IllegalStateException("Offline"));
+
+        assertTrue(first.isCompletedExceptionally());
+        assertTrue(second.isCompletedExceptionally());
+        new ConcreteFirestoreInteractor().readDocument(reference);
+        verify(reference, times(2)).get();
+    }
+
+    @Test
+    public void concurrentIdenticalQueriesShareOneRequest() {
+        CompletableFuture<Map<String, Map<String, Object>>> first = new ConcreteFirestoreInteractor().readCollection(query);
+        CompletableFuture<Map<String, Map<String, Object>>> second = new ConcreteFirestoreInteractor().readCollection(query);
+        verify(query, times(1)).get();
+
+        collectionSuccess.onSuccess(collection);
+        assertEquals("success", first.join().get("DownloadTest").get("value"));
+        first.join().get("DownloadTest").put("value", "modified");
+        assertEquals("success", second.join().get("DownloadTest").get("value"));
+    }
+
+    @Test
+    public void wholeCollectionsAreReadThroughTheSharedQueries() {
+        FirestoreInteractor interactor = new ConcreteFirestoreInteractor();
+        CompletableFuture<Map<String, Map<String, Object>>> first = interactor.readCollection(collectionReference);
+        CompletableFuture<Map<String, Map<String, Object>>> second = interactor.readCollection((Query) collectionReference);
+        verify(collectionReference, times(1)).get();
+
+        collectionSuccess.onSuccess(collection);
+        assertEquals("success", first.join().get("DownloadTest").get("value"));
+        assertEquals("success", second.join().get("DownloadTest").get("value"));
+    }
+}
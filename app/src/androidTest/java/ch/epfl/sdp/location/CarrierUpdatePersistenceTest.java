@@ -16,7 +16,6 @@ import org.junit.BeforeClass;
 import org.junit.Rule;
 import org.junit.Test;
 
-import java.text.ParseException;
 import java.util.Date;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -33,6 +32,7 @@ import ch.epfl.sdp.contamination.ObservableCarrier;
 import ch.epfl.sdp.contamination.databaseIO.CachingDataSender;
 import ch.epfl.sdp.identity.AuthenticationManager;
 import ch.epfl.sdp.identity.DefaultAuthenticationManager;
+import ch.epfl.sdp.storage.BinaryFormat;
 import ch.epfl.sdp.storage.ConcreteManager;
 import ch.epfl.sdp.storage.StorageManager;
 import ch.epfl.sdp.testActivities.DataExchangeActivity;
@@ -310,15 +310,8 @@ public class CarrierUpdatePersistenceTest {
     private StorageManager<Date, Float> initStorageManager() {
         return new ConcreteManager<>(
                 mActivityRule.getActivity(),
-                AuthenticationManager.getUserId() + ".csv",
-                date -> {
-                    try {
-                        return CoronaGame.dateFormat.parse(date);
-                    } catch (ParseException e) {
-                        throw new IllegalArgumentException("The file specified has wrong format: field 'date'");
-                    }
-                },
-                Float::valueOf);
+                AuthenticationManager.getUserId() + ".bin",
+                BinaryFormat.forDates(BinaryFormat.FLOAT_VALUES));
     }
 
     @Test
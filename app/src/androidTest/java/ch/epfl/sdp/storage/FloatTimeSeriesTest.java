@@ -0,0 +1,120 @@
+package ch.epfl.sdp.storage;
+
+import androidx.test.rule.ActivityTestRule;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import ch.epfl.sdp.CoronaGame;
+import ch.epfl.sdp.IntroActivity;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class FloatTimeSeriesTest {
+
+    private static final String TEST_FILENAME = "series_test_file.bin";
+
+    @Rule
+    public final ActivityTestRule<IntroActivity> mActivityRule = new ActivityTestRule<>(IntroActivity.class);
+
+    private static StorageManager<Date, Float> getSeries() {
+        return new FloatTimeSeries(CoronaGame.getContext(), TEST_FILENAME);
+    }
+
+    @After
+    public void deleteSeries() {
+        getSeries().delete();
+    }
+
+    @Test
+    public void samplesAreKeptSortedWhateverTheInsertionOrder() {
+        StorageManager<Date, Float> series = getSeries();
+
+        TreeMap<Date, Float> expected = new TreeMap<>();
+        for (int i = 200; i > 0; i -= 2) {
+            expected.put(new Date(i), i / 1000f);
+            series.write(new TreeMap<>(Collections.singletonMap(new Date(i), i / 1000f)));
+        }
+
+        assertThat(series.read(), equalTo(Collections.unmodifiableSortedMap(expected)));
+        assertThat(series.read().firstKey(), equalTo(new Date(2)));
+        assertThat(series.read().lastKey(), equalTo(new Date(200)));
+    }
+
+    @Test
+    public void rangeQueriesMatchTreeMapSemantics() {
+        StorageManager<Date, Float> series = getSeries();
+
+        TreeMap<Date, Float> expected = new TreeMap<>();
+        for (int i = 0; i < 100; ++i) {
+            expected.put(new Date(10 * i), (float) i);
+        }
+        series.write(expected);
+
+        assertThat(series.headMap(new Date(55)), equalTo(expected.headMap(new Date(55))));
+        assertThat(series.tailMap(new Date(550)), equalTo(expected.tailMap(new Date(550))));
+        assertThat(series.subMap(new Date(5), new Date(95)).subMap(new Date(20), new Date(40)),
+                equalTo(expected.subMap(new Date(20), new Date(40))));
+        assertThat(series.read().get(new Date(990)), equalTo(99f));
+    }
+
+    @Test
+    public void viewsAreNotAffectedByLaterWrites() {
+        StorageManager<Date, Float> series = getSeries();
+
+        series.write(new TreeMap<>(Collections.singletonMap(new Date(10), .1f)));
+        SortedMap<Date, Float> before = series.read();
+
+        series.write(new TreeMap<>(Collections.singletonMap(new Date(20), .2f)));
+        series.write(new TreeMap<>(Collections.singletonMap(new Date(5), .3f)));
+
+        assertThat(before.size(), equalTo(1));
+        assertThat(series.read().size(), equalTo(3));
+    }
+
+    @Test
+    public void readIsNotAffectedByLaterWrites() {
+        StorageManager<Date, Float> series = getSeries();
+        series.write(new TreeMap<>(Collections.singletonMap(new Date(10), .1f)));
+
+        Map<Date, Float> before = series.read();
+        // Overwrites the value in place
+        series.write(new TreeMap<>(Collections.singletonMap(new Date(10), .5f)));
+        series.write(new TreeMap<>(Collections.singletonMap(new Date(20), .2f)));
+
+        assertThat(before, equalTo(Collections.singletonMap(new Date(10), .1f)));
+        assertThat(series.read().get(new Date(10)), equalTo(.5f));
+    }
+
+    @Test
+    public void samplesAreStoredPersistently() throws IOException {
+        StorageManager<Date, Float> series = getSeries();
+
+        TreeMap<Date, Float> payload = new TreeMap<>();
+        payload.put(new Date(30), .3f);
+        payload.put(new Date(10), .1f);
+        series.write(payload);
+        series.write(new TreeMap<>(Collections.singletonMap(new Date(20), .2f)));
+        series.close();
+
+        Map<Date, Float> reloaded = getSeries().read();
+        assertThat(reloaded.size(), equalTo(3));
+        assertThat(reloaded.get(new Date(20)), equalTo(.2f));
+
+        // The file layout is the one of the binary ConcreteManager
+        StorageManager<Date, Float> manager = new ConcreteManager<>(
+                CoronaGame.getContext(),
+                TEST_FILENAME,
+                BinaryFormat.forDates(BinaryFormat.FLOAT_VALUES));
+        assertThat(manager.read(), equalTo(reloaded));
+    }
+}
@@ -7,14 +7,25 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 
 import ch.epfl.sdp.CoronaGame;
 import ch.epfl.sdp.IntroActivity;
@@ -22,10 +33,13 @@ import ch.epfl.sdp.TestTools;
 
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.fail;
 
 public class ProbabilityStorageTest {
 
     private static final String TEST_FILENAME = "history_test_file.csv";
+    private static final String BINARY_TEST_FILENAME = "history_test_file.bin";
     @Rule
     public final ActivityTestRule<IntroActivity> mActivityRule = new ActivityTestRule<>(IntroActivity.class);
     @Rule
@@ -40,6 +54,23 @@ public class ProbabilityStorageTest {
                 k -> 0,
                 v -> null
         ).delete();
+        getBinaryManager().delete();
+    }
+
+    private static StorageManager<Date, Float> getBinaryManager() {
+        return new ConcreteManager<>(
+                CoronaGame.getContext(),
+                BINARY_TEST_FILENAME,
+                BinaryFormat.forDates(BinaryFormat.FLOAT_VALUES));
+    }
+
+    private static StorageManager<Date, Float> getMigratingManager() {
+        return new ConcreteManager<>(
+                CoronaGame.getContext(),
+                BINARY_TEST_FILENAME,
+                BinaryFormat.forDates(BinaryFormat.FLOAT_VALUES),
+                TEST_FILENAME,
+                new CsvFormat<>(k -> new Date(Long.parseLong(k)), Float::valueOf));
     }
 
     private StorageManager<Integer, Double> getIntDoubleManager() {
@@ -168,6 +199,58 @@ public class ProbabilityStorageTest {
         manager.delete();
     }
 
+    @Test
+    public void rangeQueriesReturnMatchingEntries() {
+        StorageManager<Integer, Double> manager = getIntDoubleManager();
+
+        TreeMap<Integer, Double> payload = new TreeMap<>();
+        payload.put(1, .1);
+        payload.put(3, .3);
+        payload.put(5, .5);
+        assertThat(manager.write(payload), equalTo(true));
+
+        assertThat(manager.headMap(3).keySet(), equalTo(payload.headMap(3).keySet()));
+        assertThat(manager.tailMap(3).keySet(), equalTo(payload.tailMap(3).keySet()));
+        assertThat(manager.subMap(2, 6).keySet(), equalTo(payload.subMap(2, 6).keySet()));
+
+        // Views reflect later writes
+        Map<Integer, Double> tail = manager.tailMap(4);
+        manager.write(new TreeMap<>(Collections.singletonMap(7, .7)));
+        assertThat(tail.size(), equalTo(2));
+
+        manager.delete();
+    }
+
+    @Test
+    public void forEachInRangeStreamsMatchingEntriesInOrder() {
+        StorageManager<Integer, Double> manager = getIntDoubleManager();
+
+        TreeMap<Integer, Double> payload = new TreeMap<>();
+        for (int i = 0; i < 10; ++i) {
+            payload.put(i, i / 10.);
+        }
+        assertThat(manager.write(payload), equalTo(true));
+
+        TreeMap<Integer, Double> streamed = new TreeMap<>();
+        List<Integer> order = new ArrayList<>();
+        manager.forEachInRange(2, 7, (k, v) -> {
+            streamed.put(k, v);
+            order.add(k);
+        });
+        assertThat(streamed, equalTo(payload.subMap(2, 7)));
+        assertThat(order, equalTo(new ArrayList<>(payload.subMap(2, 7).keySet())));
+
+        // Null bounds are open
+        List<Integer> head = new ArrayList<>();
+        manager.forEachInRange(null, 3, (k, v) -> head.add(k));
+        assertThat(head, equalTo(new ArrayList<>(payload.headMap(3).keySet())));
+        List<Integer> all = new ArrayList<>();
+        manager.forEachInRange(null, null, (k, v) -> all.add(k));
+        assertThat(all, equalTo(new ArrayList<>(payload.keySet())));
+
+        manager.delete();
+    }
+
     @Test
     public void readReturnsUnmodifiableMap() {
         StorageManager<Integer, Double> manager = getIntDoubleManager();
@@ -184,6 +267,19 @@ public class ProbabilityStorageTest {
         res1.put(10, -1.);
     }
 
+    @Test
+    public void readIsNotAffectedByLaterWrites() {
+        StorageManager<Integer, Double> manager = getIntDoubleManager();
+        manager.write(new TreeMap<>(Collections.singletonMap(2, .4)));
+
+        Map<Integer, Double> before = manager.read();
+        manager.write(new TreeMap<>(Collections.singletonMap(3, .5)));
+        assertThat(before.size(), equalTo(1));
+        assertThat(manager.read().size(), equalTo(2));
+
+        manager.delete();
+    }
+
     @Test
     public void dataAreStoredPersistently() throws IOException {
         StorageManager<Date, Double> createFile = getDateDoubleManager();
@@ -229,4 +325,195 @@ public class ProbabilityStorageTest {
 
         freshFile.delete();
     }
+
+    @Test
+    public void binaryContentIsStoredPersistently() throws IOException {
+        StorageManager<Date, Float> manager = getBinaryManager();
+
+        TreeMap<Date, Float> payload = new TreeMap<>();
+        payload.put(new Date(1000), .1f);
+        payload.put(new Date(2001), .7f);
+        assertThat(manager.write(payload), equalTo(true));
+        manager.close();
+
+        Map<Date, Float> content = getBinaryManager().read();
+        assertThat(content, equalTo(Collections.unmodifiableSortedMap(payload)));
+
+        manager.delete();
+    }
+
+    @Test
+    public void csvFileIsMigratedToBinaryFormat() throws IOException {
+        StorageManager<Long, Float> csv = new ConcreteManager<>(
+                CoronaGame.getContext(),
+                TEST_FILENAME,
+                Long::valueOf,
+                Float::valueOf);
+        csv.write(new TreeMap<>(Collections.singletonMap(1234L, .5f)));
+        csv.close();
+
+        StorageManager<Date, Float> migrated = getMigratingManager();
+        assertThat(migrated.read().get(new Date(1234)), equalTo(.5f));
+        assertThat(new File(CoronaGame.getContext().getFilesDir(), TEST_FILENAME).exists(), equalTo(false));
+
+        migrated.close();
+        assertThat(getBinaryManager().read().size(), equalTo(1));
+
+        migrated.delete();
+    }
+
+    @Test
+    public void writesIssuedWhileLoadingAreApplied() throws Exception {
+        StorageManager<Date, Float> manager = getBinaryManager();
+
+        // Neither call waits for the file to be loaded
+        assertThat(manager.write(new TreeMap<>(Collections.singletonMap(new Date(10), .1f))), equalTo(true));
+        CompletableFuture<Float> value = manager.whenReady().thenApply(m -> m.read().get(new Date(10)));
+
+        assertThat(value.get(1, TimeUnit.SECONDS), equalTo(.1f));
+        manager.close();
+        assertThat(getBinaryManager().read().get(new Date(10)), equalTo(.1f));
+
+        manager.delete();
+    }
+
+    @Test
+    public void isLoadedOnceReady() throws Exception {
+        StorageManager<Date, Float> manager = getBinaryManager();
+
+        manager.whenReady().get(1, TimeUnit.SECONDS);
+        assertThat(manager.isLoaded(), equalTo(true));
+
+        manager.delete();
+    }
+
+    @Test
+    public void groupedWritesAreCommittedByThresholdOrSync() throws IOException {
+        ConcreteManager<Date, Float> manager = new ConcreteManager<>(
+                CoronaGame.getContext(),
+                BINARY_TEST_FILENAME,
+                BinaryFormat.forDates(BinaryFormat.FLOAT_VALUES));
+        manager.setCommitPolicy(new CommitPolicy(CommitPolicy.Durability.FLUSH, 3, 60000));
+        File file = new File(CoronaGame.getContext().getFilesDir(), BINARY_TEST_FILENAME);
+
+        manager.write(new TreeMap<>(Collections.singletonMap(new Date(1), .1f)));
+        manager.write(new TreeMap<>(Collections.singletonMap(new Date(2), .2f)));
+        assertThat(manager.isReadable(), equalTo(true));
+        assertThat(file.length(), equalTo(0L));
+
+        manager.write(new TreeMap<>(Collections.singletonMap(new Date(3), .3f)));
+        long committed = file.length();
+        assertThat(committed > 0, equalTo(true));
+
+        manager.write(new TreeMap<>(Collections.singletonMap(new Date(4), .4f)));
+        assertThat(file.length(), equalTo(committed));
+        manager.sync();
+        assertThat(file.length() > committed, equalTo(true));
+
+        manager.delete();
+    }
+
+    @Test
+    public void dateKeysWrittenAsTextAreMigratedToEpochMillis() throws IOException {
+        File file = new File(CoronaGame.getContext().getFilesDir(), TEST_FILENAME);
+        Date afternoon = new Date(1589814000000L);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write((afternoon.toString() + ",0.5\n").getBytes(StandardCharsets.UTF_8));
+        }
+
+        StorageManager<Date, Float> manager = new ConcreteManager<>(
+                CoronaGame.getContext(),
+                TEST_FILENAME,
+                new CsvFormat<>(KeyCodec.EPOCH_MILLIS, Float::valueOf));
+        assertThat(manager.read().get(afternoon), equalTo(.5f));
+        manager.close();
+
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            assertThat(reader.readLine(), equalTo(afternoon.getTime() + ",0.5"));
+        }
+
+        manager.delete();
+    }
+
+    @Test
+    public void hotWindowManagerReadsOlderRecordsFromDisk() throws IOException {
+        long now = System.currentTimeMillis();
+        TreeMap<Date, Float> payload = new TreeMap<>();
+        for (int i = 0; i < 1000; ++i) {
+            payload.put(new Date(now - 100 * i), i / 1000f);
+        }
+        StorageManager<Date, Float> manager = getBinaryManager();
+        manager.write(payload);
+        manager.close();
+
+        // Only the last 10 seconds are cached
+        StorageManager<Date, Float> hot = new ConcreteManager<>(
+                CoronaGame.getContext(),
+                BINARY_TEST_FILENAME,
+                BinaryFormat.forDates(BinaryFormat.FLOAT_VALUES),
+                10000);
+        Date from = new Date(now - 50000);
+        Date to = new Date(now - 5000);
+        assertThat(hot.subMap(from, to), equalTo(payload.subMap(from, to)));
+        assertThat(hot.tailMap(to), equalTo(payload.tailMap(to)));
+        assertThat(hot.read(), equalTo(payload));
+
+        hot.delete();
+    }
+
+    @Test
+    public void hotWindowManagerRemovesOlderRecords() {
+        long now = System.currentTimeMillis();
+        TreeMap<Date, Float> payload = new TreeMap<>();
+        for (int i = 0; i < 1000; ++i) {
+            payload.put(new Date(now - 100 * i), i / 1000f);
+        }
+        ConcreteManager<Date, Float> hot = new ConcreteManager<>(
+                CoronaGame.getContext(),
+                BINARY_TEST_FILENAME,
+                BinaryFormat.forDates(BinaryFormat.FLOAT_VALUES),
+                10000);
+        hot.write(payload);
+
+        // Records on disk only and in the cache
+        List<Date> removed = new ArrayList<>(payload.headMap(new Date(now - 90000)).keySet());
+        removed.add(payload.lastKey());
+        assertThat(hot.remove(removed), equalTo(true));
+        payload.keySet().removeAll(removed);
+        assertThat(hot.read(), equalTo(payload));
+        Date from = new Date(now - 95000);
+        assertThat(hot.tailMap(from), equalTo(payload.tailMap(from)));
+
+        hot.delete();
+    }
+
+    @Test
+    public void failedAppendsDoNotLeakFileDescriptors() {
+        RecordFile<Date, Float> file = new RecordFile<>(
+                new File(CoronaGame.getContext().getFilesDir(), "failing_records.bin"),
+                new RecordFormat<Date, Float>() {
+                    @Override
+                    public boolean load(File file, BiConsumer<Date, Float> sink) {
+                        return false;
+                    }
+
+                    @Override
+                    public void append(OutputStream out, Date key, Float value) throws IOException {
+                        throw new IOException("No space left on device");
+                    }
+                });
+
+        File descriptors = new File("/proc/self/fd");
+        int openBefore = descriptors.list().length;
+        for (int i = 0; i < 20; ++i) {
+            try {
+                file.append(Collections.singletonMap(new Date(i), .5f));
+                fail();
+            } catch (IOException expected) {
+            }
+        }
+        // Other threads may open a few files meanwhile, but not one per failed append
+        assertThat(descriptors.list().length, lessThan(openBefore + 10));
+        file.delete();
+    }
 }
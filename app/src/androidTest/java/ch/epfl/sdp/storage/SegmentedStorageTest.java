@@ -0,0 +1,144 @@
+package ch.epfl.sdp.storage;
+
+import androidx.test.rule.ActivityTestRule;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import ch.epfl.sdp.CoronaGame;
+import ch.epfl.sdp.IntroActivity;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class SegmentedStorageTest {
+
+    private static final String TEST_DIRECTORY = "segments_test";
+    private static final long SEGMENT_LENGTH = 1000;
+    private static final long RETENTION = 10 * SEGMENT_LENGTH;
+
+    @Rule
+    public final ActivityTestRule<IntroActivity> mActivityRule = new ActivityTestRule<>(IntroActivity.class);
+
+    private static StorageManager<Date, Float> getSegmentedManager() {
+        return new SegmentedManager<>(
+                CoronaGame.getContext(),
+                TEST_DIRECTORY,
+                BinaryFormat.forDates(BinaryFormat.FLOAT_VALUES),
+                Date::getTime,
+                SEGMENT_LENGTH,
+                RETENTION);
+    }
+
+    @After
+    public void deleteSegments() {
+        getSegmentedManager().delete();
+    }
+
+    @Test
+    public void entriesAreSplitAcrossSegments() {
+        StorageManager<Date, Float> manager = getSegmentedManager();
+
+        long now = System.currentTimeMillis();
+        TreeMap<Date, Float> payload = new TreeMap<>();
+        payload.put(new Date(now - 3 * SEGMENT_LENGTH), .1f);
+        payload.put(new Date(now), .2f);
+        assertThat(manager.write(payload), equalTo(true));
+
+        File directory = new File(CoronaGame.getContext().getFilesDir(), TEST_DIRECTORY);
+        assertThat(directory.listFiles().length, equalTo(2));
+
+        Map<Date, Float> content = getSegmentedManager().read();
+        assertThat(content, equalTo(Collections.unmodifiableSortedMap(payload)));
+    }
+
+    @Test
+    public void expiredEntriesAreDropped() {
+        StorageManager<Date, Float> manager = getSegmentedManager();
+
+        long now = System.currentTimeMillis();
+        TreeMap<Date, Float> payload = new TreeMap<>();
+        payload.put(new Date(now - 2 * RETENTION), .1f);
+        payload.put(new Date(now), .2f);
+        assertThat(manager.write(payload), equalTo(true));
+
+        Map<Date, Float> content = manager.read();
+        assertThat(content.size(), equalTo(1));
+        assertThat(content.get(new Date(now)), equalTo(.2f));
+    }
+
+    @Test
+    public void segmentsBeforeTheHotWindowAreReadFromDisk() {
+        StorageManager<Date, Float> manager = getSegmentedManager();
+        long now = System.currentTimeMillis();
+        TreeMap<Date, Float> payload = new TreeMap<>();
+        for (int i = 0; i < 50; ++i) {
+            payload.put(new Date(now - 100 * i), i / 50f);
+        }
+        manager.write(payload);
+
+        // Only the last 2 segments are cached
+        StorageManager<Date, Float> hot = new SegmentedManager<>(
+                CoronaGame.getContext(),
+                TEST_DIRECTORY,
+                BinaryFormat.forDates(BinaryFormat.FLOAT_VALUES),
+                Date::getTime,
+                SEGMENT_LENGTH,
+                RETENTION,
+                null,
+                2 * SEGMENT_LENGTH);
+        Date from = new Date(now - 4000);
+        Date to = new Date(now - 1000);
+        assertThat(hot.read(), equalTo(payload));
+        assertThat(hot.subMap(from, to), equalTo(payload.subMap(from, to)));
+
+        List<Date> keys = new ArrayList<>();
+        hot.forEachInRange(from, new Date(now + 1), (key, value) -> keys.add(key));
+        assertThat(keys, equalTo(new ArrayList<>(payload.tailMap(from).keySet())));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void writesQueuedBeforeAFailedLoadingAreHandedBack() {
+        // The loading only starts once the legacy manager is loaded, and then fails
+        CompletableFuture<StorageManager<Date, Float>> legacyReady = new CompletableFuture<>();
+        StorageManager<Date, Float> legacy = mock(StorageManager.class);
+        when(legacy.whenReady()).thenReturn(legacyReady);
+        when(legacy.isReadable()).thenThrow(new IllegalStateException("Unreadable legacy file"));
+
+        StorageManager<Date, Float> manager = new SegmentedManager<>(
+                CoronaGame.getContext(),
+                TEST_DIRECTORY,
+                BinaryFormat.forDates(BinaryFormat.FLOAT_VALUES),
+                Date::getTime,
+                SEGMENT_LENGTH,
+                RETENTION,
+                legacy);
+        TreeMap<Date, Float> payload = new TreeMap<>(Collections.singletonMap(new Date(System.currentTimeMillis()), .5f));
+        assertThat(manager.write(payload), equalTo(true));
+        assertThat(manager.isLoaded(), equalTo(false));
+
+        legacyReady.complete(legacy);
+        try {
+            manager.whenReady().join();
+            fail();
+        } catch (CompletionException e) {
+            LoadingFailedException failure = (LoadingFailedException) e.getCause();
+            assertThat(failure.getDroppedWrites(), equalTo(Collections.singletonList(payload)));
+        }
+    }
+}
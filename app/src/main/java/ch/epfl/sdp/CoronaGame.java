@@ -11,13 +11,12 @@ import android.os.Bundle;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 
 import org.jetbrains.annotations.NotNull;
 
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-
 import ch.epfl.sdp.location.LocationService;
+import ch.epfl.sdp.utilities.Clock;
 
 import static java.lang.Boolean.FALSE;
 import static java.lang.Boolean.TRUE;
@@ -25,7 +24,6 @@ import static java.lang.Boolean.TRUE;
 public class CoronaGame extends Application implements Application.ActivityLifecycleCallbacks {
 
     public static final String SHARED_PREF_FILENAME = "coronagame_shared_pref";
-    public static final DateFormat dateFormat = new SimpleDateFormat("E MMM dd hh:mm:ss zzz yyyy");
     public static final String NOTIFICATION_CHANNEL_ID = "LOCATION_SERVICE_CHANNEL";
     public static final boolean IS_DEMO = FALSE;
     private static final String NOTIFICATION_CHANNEL_NAME = "SERVICE_NOTIFICATION";
@@ -34,6 +32,7 @@ public class CoronaGame extends Application implements Application.ActivityLifec
     public static boolean IS_NETWORK_DEBUG = FALSE;
     private static Context context;
     private static int DEMO_SPEEDUP = 1;
+    private static Clock clock = Clock.SYSTEM;
     private Activity currentActivity;
 
     public static int getDemoSpeedup() {
@@ -49,6 +48,25 @@ public class CoronaGame extends Application implements Application.ActivityLifec
         }
     }
 
+    /**
+     * @return the clock that the components of the app read the time from by default
+     */
+    public static Clock getClock() {
+        return clock;
+    }
+
+    /**
+     * Makes the components created from now on use 'clock', for instance a VirtualClock to replay
+     * hours of movements in a few milliseconds
+     */
+    @VisibleForTesting
+    public static void setClock(Clock clock) {
+        if (clock == null) {
+            throw new IllegalArgumentException("The clock cannot be null");
+        }
+        CoronaGame.clock = clock;
+    }
+
     public static Context getContext() {
         return CoronaGame.context;
     }
@@ -2,6 +2,7 @@ package ch.epfl.sdp.contamination;
 
 import java.util.Date;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * A Carrier is an entity with a modifiable health status
@@ -54,11 +55,23 @@ public interface Carrier {
      * Retrieves the evolution of infection probability for the carrier,
      * starting from the date 'since'
      *
+     * Blocks until the stored history is loaded.
+     *
      * @param since
      * @return a Map containing, for each date, the probability of being infected
      */
     Map<Date, Float> getIllnessProbabilityHistory(Date since);
 
+    /**
+     * Same as getIllnessProbabilityHistory(), without blocking until the stored history is loaded
+     *
+     * @param since
+     * @return a future Map containing, for each date, the probability of being infected
+     */
+    default CompletableFuture<Map<Date, Float>> whenIllnessProbabilityHistoryLoaded(Date since) {
+        return CompletableFuture.completedFuture(getIllnessProbabilityHistory(since));
+    }
+
     void deleteLocalProbabilityHistory();
 
     /**
@@ -4,9 +4,10 @@ import android.location.Location;
 import android.os.AsyncTask;
 import android.util.Log;
 
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Observable;
 import java.util.Observer;
@@ -14,6 +15,7 @@ import java.util.Optional;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 
 import ch.epfl.sdp.contamination.databaseIO.CachingDataSender;
 import ch.epfl.sdp.contamination.databaseIO.DataReceiver;
@@ -195,17 +197,23 @@ public class ConcreteAnalysis implements InfectionAnalyst, Observer {
     }
 
     private void notifyNeighborsOfInfection(float previousIllnessProbability) {
-        //1: retrieve your own last positions
+        //1: retrieve your own last positions, including those stored by previous runs
+        cachedSender.whenPositionsLoaded().join();
         SortedMap<Date, Location> lastPositions = cachedSender.getLastPositions();
 
         //2: Ask firebase who was there
-        Set<String> userIds = new HashSet<>();
-        lastPositions.forEach((date, location) -> receiver.getUserNearby(location, date).thenAccept(around -> around.forEach(neighbor -> {
+        Set<String> userIds = ConcurrentHashMap.newKeySet();
+        List<CompletableFuture<Void>> lookups = new ArrayList<>();
+        lastPositions.forEach((date, location) -> lookups.add(receiver.getUserNearby(location, date).thenAccept(around -> around.forEach(neighbor -> {
             // Inform once only non-INFECTED users
             if (neighbor.getInfectionStatus() != INFECTED) {
                 userIds.add(neighbor.getUniqueId());
             }
-        })));
+        }))));
+        // Wait for every neighbor before alerting them (this runs in background)
+        CompletableFuture.allOf(lookups.toArray(new CompletableFuture[lookups.size()]))
+                .exceptionally(e -> null)
+                .join();
 
         // Tell those user that they have been close to you
         userIds.forEach(u -> cachedSender.sendAlert(u, previousIllnessProbability));
@@ -3,105 +3,191 @@ package ch.epfl.sdp.contamination;
 import android.location.Location;
 import android.util.Log;
 
-import java.util.ArrayList;
-import java.util.Calendar;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
+import ch.epfl.sdp.CoronaGame;
 import ch.epfl.sdp.contamination.databaseIO.CachingDataSender;
-
-import static ch.epfl.sdp.identity.fragment.AccountFragment.IN_TEST;
+import ch.epfl.sdp.contamination.databaseIO.GridFirestoreInteractor;
+import ch.epfl.sdp.utilities.Clock;
 
 /**
+ * Positions reported by addPosition() (from any thread) are queued for a task scheduled on the
+ * clock of the aggregator. That task is the only one to touch the aggregation state: it adds each
+ * fix to the window of its date, and closes the windows that the clock has left. A window during
+ * which no fix arrived (the carrier did not move) gets the newest known fix.
+ * <p>
+ * While consecutive windows fall in the same grid cell, only the first one is uploaded: the
+ * others extend a dwell, registered as a single interval once the carrier leaves the cell (or
+ * after MAX_DWELL_DURATION). An open dwell is registered again every DWELL_REFRESH_PERIOD, so that
+ * other carriers see the stay before it ends, and when the aggregator is closed.
+ *
  * @author lucas
  */
 public final class ConcretePositionAggregator implements PositionAggregator {
-    private HashMap<Long, List<Location>> buffer;
+    private static final long NO_WINDOW = Long.MIN_VALUE;
+    // Fixes kept per window: the LocationService requests at most one fix per second
+    static final int MAX_FIXES_PER_WINDOW = Math.max(1, WINDOW_FOR_LOCATION_AGGREGATION / 1000);
+    // [ms] Longest interval covered by a single dwell
+    public static final long MAX_DWELL_DURATION = 45 * WINDOW_FOR_LOCATION_AGGREGATION;
+    // [ms] Delay after which the end of an open dwell is registered again
+    public static final long DWELL_REFRESH_PERIOD = 3 * WINDOW_FOR_LOCATION_AGGREGATION;
+
+    // Fixes reported by addPosition(), drained by the scheduled task
+    private final Queue<Fix> pendingFixes = new ConcurrentLinkedQueue<>();
+    private volatile boolean isOnline;
+
+    // Only accessed by the scheduled task and close(), holding the lock of the aggregator
+    // Fixes of the window starting at lastWindow
+    private PositionWindow window;
+    private long lastWindow;
+    // Newest fix received, added to the windows during which the carrier did not move
+    private Location newestFix;
+    // Last registered fix, whose properties are copied to the mean location
+    private Location lastFix;
+    // Stay in the cell dwellCell, uploaded at dwellStart and extended until dwellEnd
+    private String dwellCell;
+    private Location dwellLocation;
+    private long dwellStart;
+    private long dwellEnd;
+    // End of the stay as last registered
+    private long registeredDwellEnd;
+    private boolean isClosed = false;
     private int timelapBetweenNewLocationRegistration;
-    private Date lastDate;
-    private Location newestLocation;
-    private Date newestDate;
-    private boolean isOnline;
     private CachingDataSender cachingDataSender;
     private Carrier carrier;
-    private Timer updatePosTimer;
+    // The system clock runs the tasks of every aggregator on one shared thread
+    private final Clock clock;
+    private Clock.Cancellable updatePosTask;
 
 
-    public ConcretePositionAggregator(CachingDataSender cachingDataSender, Carrier carrier, int maxLocationsPerAggregation) {
+    public ConcretePositionAggregator(CachingDataSender cachingDataSender, Carrier carrier, int maxLocationsPerAggregation, Clock clock) {
         if (cachingDataSender == null || carrier == null) {
             throw new IllegalArgumentException("DataSender and Carrier should not be null");
         } else if (maxLocationsPerAggregation <= 0) {
             throw new IllegalArgumentException("There should be more than zero locations per aggregation!");
+        } else if (clock == null) {
+            throw new IllegalArgumentException("Clock should not be null");
         }
+        this.clock = clock;
         this.timelapBetweenNewLocationRegistration = WINDOW_FOR_LOCATION_AGGREGATION / maxLocationsPerAggregation;
-        this.buffer = new HashMap<>();
+        // Every fix is kept, so that the outliers can be told apart from the spread of the window
+        this.window = new PositionWindow(Math.max(maxLocationsPerAggregation, MAX_FIXES_PER_WINDOW) + 1);
         this.cachingDataSender = cachingDataSender;
         this.carrier = carrier;
-        this.lastDate = null;
+        this.lastWindow = NO_WINDOW;
         this.isOnline = false;
         startTimer();
     }
 
+    public ConcretePositionAggregator(CachingDataSender cachingDataSender, Carrier carrier, int maxLocationsPerAggregation) {
+        this(cachingDataSender, carrier, maxLocationsPerAggregation, CoronaGame.getClock());
+    }
+
     public ConcretePositionAggregator(CachingDataSender cachingDataSender, Carrier carrier) {
         this(cachingDataSender, carrier, PositionAggregator.MAXIMAL_NUMBER_OF_LOCATIONS_PER_AGGREGATION);
     }
 
     /**
-     * The timer will automatically re-enter the position if the user is not moving and online so that the average is more accurate
+     * The timer registers the fixes received meanwhile, and closes the window once its time is over,
+     * re-entering the position if the user is not moving and online so that no window is missed
      */
     private void startTimer() {
-        class UpdatePosTask extends TimerTask {
-            public void run() {
-                if (isOnline && newestLocation != null) {
-                    if (!IN_TEST) {
-                        registerPosition(newestLocation, Calendar.getInstance().getTime());
-                    } else {
-                        registerPosition(newestLocation, newestDate);
-                    }
-                }
-            }
-        }
-        if (updatePosTimer != null) {
+        if (updatePosTask != null) {
             stopTimer();
         }
-        updatePosTimer = new Timer();
-        updatePosTimer.scheduleAtFixedRate(new UpdatePosTask(), 0, timelapBetweenNewLocationRegistration);
+        updatePosTask = clock.scheduleAtFixedRate(this::registerPendingFixes,
+                0, timelapBetweenNewLocationRegistration);
     }
 
     private void stopTimer() {
-        updatePosTimer.cancel();
+        updatePosTask.cancel();
+    }
+
+    private synchronized void registerPendingFixes() {
+        if (isClosed) {
+            return;
+        }
+        if (!isOnline) {
+            pendingFixes.clear();
+            return;
+        }
+        try {
+            Fix fix;
+            while ((fix = pendingFixes.poll()) != null) {
+                // A late fix is counted in the current window, windows are never reopened
+                registerPosition(fix.location, Math.max(fix.time, lastWindow));
+                newestFix = fix.location;
+            }
+            moveToWindow(PositionAggregator.getWindowForTime(clock.currentTimeMillis()));
+        } catch (RuntimeException e) {
+            // An exception would cancel the periodic task
+            Log.e("POSITION_AGGREGATOR", "Could not register position", e);
+        }
     }
 
-    private void registerPosition(Location location, Date date) {
+    private void registerPosition(Location location, long time) {
+        moveToWindow(PositionAggregator.getWindowForTime(time));
+        if (window.add(location.getLatitude(), location.getLongitude(), location.getAccuracy())) {
+            lastFix = location;
+        }
+    }
 
-        if (location == null) {
-            throw new IllegalArgumentException("Location should not be null");
+    // Closes the current window if 'windowStart' is a later one
+    private void moveToWindow(long windowStart) {
+        if (windowStart <= lastWindow) {
+            return;
         }
-        Date roundedDate = PositionAggregator.getWindowForDate(date);
-        List<Location> tmp = buffer.get(roundedDate.getTime());
-        if (tmp != null) {
-            tmp.add(location);
-            lastDate = roundedDate;
-        } else {
-            update();
-            lastDate = roundedDate;
-            ArrayList<Location> newList = new ArrayList<>();
+        if (lastWindow != NO_WINDOW && window.isEmpty() && newestFix != null) {
+            // No fix during the window: the carrier did not move
+            registerStationaryFix();
+        }
+        update();
+        lastWindow = windowStart;
+    }
 
-            newList.add(location);
-            buffer.put(roundedDate.getTime(), newList);
+    private void registerStationaryFix() {
+        if (window.add(newestFix.getLatitude(), newestFix.getLongitude(), newestFix.getAccuracy())) {
+            lastFix = newestFix;
         }
     }
 
+    @Override
+    public void addPosition(Location location) {
+        addPosition(location, clock.now());
+    }
+
+    /**
+     * The fix is counted in the window of 'date', or in the current one if that window is over
+     */
     @Override
     public void addPosition(Location location, Date date) {
         if (location == null || date == null) {
             throw new IllegalArgumentException("Location or date should not be null !");
         }
-        this.newestLocation = location;
-        this.newestDate = date;
+        pendingFixes.add(new Fix(location, date.getTime()));
+    }
+
+    /**
+     * Registers the fixes received so far, the current window and the open dwell
+     */
+    @Override
+    public synchronized void close() {
+        if (isClosed) {
+            return;
+        }
+        stopTimer();
+        if (isOnline) {
+            Fix fix;
+            while ((fix = pendingFixes.poll()) != null) {
+                registerPosition(fix.location, Math.max(fix.time, lastWindow));
+            }
+            update();
+            closeDwell();
+        }
+        pendingFixes.clear();
+        isClosed = true;
     }
 
 
@@ -111,35 +197,58 @@ public final class ConcretePositionAggregator implements PositionAggregator {
      * or if it just returns without doing anything.
      */
     private void update() {
-        if (lastDate != null) {
-            List<Location> targetLocations = buffer.remove(lastDate.getTime());
-            Location meanLocation = getMean(targetLocations);
-            Log.e("POSITION_AGGREGATOR", "New position committed");
-            // Perform potentially long-running operation on a different thread
-            cachingDataSender.registerLocation(carrier, meanLocation, lastDate);
-            Log.e("POSITION_AGGREGATOR", meanLocation.toString() + " with date : " + lastDate.getTime());
-            Log.e("POSITION_AGGREGATOR", "Upload performed");
-
+        if (lastWindow != NO_WINDOW && !window.isEmpty()) {
+            Location meanLocation = getMean();
+            String cell = GridFirestoreInteractor.getGridId(meanLocation);
+            if (extendsDwell(cell)) {
+                dwellEnd = lastWindow;
+                if ((dwellEnd - dwellStart) % DWELL_REFRESH_PERIOD == 0) {
+                    // Until then, the readers only see the stay up to its registered end
+                    registerDwell();
+                }
+            } else {
+                closeDwell();
+                Log.e("POSITION_AGGREGATOR", "New position committed");
+                // Perform potentially long-running operation on a different thread
+                cachingDataSender.registerLocation(carrier, meanLocation, new Date(lastWindow));
+                Log.e("POSITION_AGGREGATOR", meanLocation.toString() + " with date : " + lastWindow
+                        + ", " + window.rejectedCount() + " outlier(s) rejected");
+                Log.e("POSITION_AGGREGATOR", "Upload performed");
+                dwellCell = cell;
+                dwellLocation = meanLocation;
+                dwellStart = lastWindow;
+                dwellEnd = lastWindow;
+                registeredDwellEnd = lastWindow;
+            }
         }
+        window.clear();
     }
 
+    // The window directly follows the dwell, in the same cell
+    private boolean extendsDwell(String cell) {
+        return cell.equals(dwellCell)
+                && lastWindow - dwellEnd == WINDOW_FOR_LOCATION_AGGREGATION
+                && lastWindow - dwellStart <= MAX_DWELL_DURATION;
+    }
 
-    private Location getMean(List<Location> targetLocations) {
-        if (targetLocations == null || targetLocations.size() == 0) {
-            throw new IllegalArgumentException("Target location should not be empty");
+    private void closeDwell() {
+        if (dwellCell != null && dwellEnd > registeredDwellEnd) {
+            registerDwell();
         }
-        double latitudeSum = 0;
-        double longitudeSum = 0;
-        int size = targetLocations.size();
-        for (int i = 0; i < size; i += 1) {
-            latitudeSum += targetLocations.get(i).getLatitude();
-            longitudeSum += targetLocations.get(i).getLongitude();
-        }
-        latitudeSum = latitudeSum / ((double) (size));
-        longitudeSum = longitudeSum / ((double) (size));
-        Location res = new Location(targetLocations.get(0)); // creates a new location with same properties as other locations
-        res.setLatitude(latitudeSum);
-        res.setLongitude(longitudeSum);
+        dwellCell = null;
+    }
+
+    private void registerDwell() {
+        cachingDataSender.registerDwell(carrier, dwellLocation, new Date(dwellStart), new Date(dwellEnd));
+        registeredDwellEnd = dwellEnd;
+        Log.e("POSITION_AGGREGATOR", "Dwell committed from " + dwellStart + " to " + dwellEnd);
+    }
+
+    // The location handed to the DataSender
+    private Location getMean() {
+        Location res = new Location(lastFix); // creates a new location with same properties as other locations
+        res.setLatitude(window.meanLatitude());
+        res.setLongitude(window.meanLongitude());
         return res;
     }
 
@@ -150,4 +259,14 @@ public final class ConcretePositionAggregator implements PositionAggregator {
     public void updateToOnline() {
         this.isOnline = true;
     }
+
+    private static final class Fix {
+        private final Location location;
+        private final long time;
+
+        private Fix(Location location, long time) {
+            this.location = location;
+            this.time = time;
+        }
+    }
 }
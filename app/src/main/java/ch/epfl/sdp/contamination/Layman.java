@@ -3,18 +3,20 @@ package ch.epfl.sdp.contamination;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
-import java.text.ParseException;
 import java.util.Collections;
 import java.util.Date;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
-import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.locks.ReentrantLock;
 
 import ch.epfl.sdp.CoronaGame;
-import ch.epfl.sdp.storage.ConcreteManager;
+import ch.epfl.sdp.storage.CsvFormat;
+import ch.epfl.sdp.storage.FloatTimeSeries;
+import ch.epfl.sdp.storage.KeyCodec;
+import ch.epfl.sdp.storage.LoadingFailedException;
 import ch.epfl.sdp.storage.StorageManager;
 
 /**
@@ -33,7 +35,8 @@ public class Layman extends ObservableCarrier {
     // Every update of infectedWithProbability must happen through setInfectionProbability()
     private float infectedWithProbability;
 
-    private StorageManager<Date, Float> infectionHistory;
+    // Thread-safe on its own: the lock only guards its replacement
+    private volatile StorageManager<Date, Float> infectionHistory;
 
     private String uniqueID;
 
@@ -55,38 +58,40 @@ public class Layman extends ObservableCarrier {
 
         lock = new ReentrantLock();
 
-        this.infectionHistory = initStorageManager(uniqueID);
+        this.infectionHistory = openStorageManager(uniqueID);
+        recoverIfUnreadable(infectionHistory);
 
-        validateAndSetProbability(new Date(), infectedWithProbability);
+        validateAndSetProbability(CoronaGame.getClock().now(), infectedWithProbability);
     }
 
     private StorageManager<Date, Float> openStorageManager(String fileId) {
 
-        return new ConcreteManager<>(
+        // Histories written by previous versions (CSV) are converted on first load
+        return new FloatTimeSeries(
                 CoronaGame.getContext(),
+                fileId + ".bin",
                 fileId + ".csv",
-                date -> {
-                    try {
-                        return CoronaGame.dateFormat.parse(date);
-                    } catch (ParseException e) {
-                        throw new IllegalArgumentException("The file specified has wrong format: field 'date'. Example of data found: " + date);
-                    }
-                },
-                Float::valueOf
+                new CsvFormat<>(KeyCodec.EPOCH_MILLIS, Float::valueOf)
         );
     }
 
-    // Load previous probabilities history
-    private StorageManager<Date, Float> initStorageManager(String fileId) {
-
-        StorageManager<Date, Float> cm = openStorageManager(fileId);
-
-        if (!cm.isReadable()) {
-            cm.delete();
-            cm = openStorageManager(fileId);
-        }
-
-        return cm;
+    // Previous probabilities history is loaded in background: if it turns out to be unreadable,
+    // start over with a new one that contains the probabilities set meanwhile and the current one
+    private void recoverIfUnreadable(StorageManager<Date, Float> history) {
+        history.whenReady().exceptionally(e -> {
+            lock.lock();
+            try {
+                if (infectionHistory == history) {
+                    history.delete();
+                    infectionHistory = openStorageManager(uniqueID);
+                    LoadingFailedException.replayDroppedWrites(e, infectionHistory);
+                    infectionHistory.write(new TreeMap<>(Collections.singletonMap(CoronaGame.getClock().now(), infectedWithProbability)));
+                }
+            } finally {
+                lock.unlock();
+            }
+            return null;
+        });
     }
 
     private boolean validateAndSetProbability(Date when, float probability) {
@@ -190,17 +195,15 @@ public class Layman extends ObservableCarrier {
     @Override
     public Map<Date, Float> getIllnessProbabilityHistory(Date since) {
 
-        lock.lock();
-
-        SortedMap<Date, Float> result;
-
-        try {
-            result = infectionHistory.filter((date, prob) -> date.after(since));
-        } finally {
-            lock.unlock();
-        }
+        // Read-only view of the history strictly after 'since', no need to lock: the storage
+        // can be read while the probability is updated
+        return infectionHistory.tailMap(new Date(since.getTime() + 1));
+    }
 
-        return result;
+    @Override
+    public CompletableFuture<Map<Date, Float>> whenIllnessProbabilityHistoryLoaded(Date since) {
+        StorageManager<Date, Float> history = infectionHistory;
+        return history.whenReady().thenApply(loaded -> loaded.tailMap(new Date(since.getTime() + 1)));
     }
 
     @Override
@@ -271,9 +274,8 @@ public class Layman extends ObservableCarrier {
             infectionHistory.delete();
 
             // Create a new one
-            infectionHistory = initStorageManager(uniqueID);
-
-            infectionHistory.read();
+            infectionHistory = openStorageManager(uniqueID);
+            recoverIfUnreadable(infectionHistory);
         } finally {
             lock.unlock();
         }
@@ -2,9 +2,10 @@ package ch.epfl.sdp.contamination;
 
 import android.location.Location;
 
-import java.util.Calendar;
 import java.util.Date;
 
+import ch.epfl.sdp.CoronaGame;
+
 import static ch.epfl.sdp.CoronaGame.getDemoSpeedup;
 
 /**
@@ -17,12 +18,14 @@ public interface PositionAggregator {
     int MAXIMAL_NUMBER_OF_LOCATIONS_PER_AGGREGATION = 2; //WINDOW_FOR_LOCATION_AGGREGATION/10000; // default : 1 location every 10 seconds
 
     static Date getWindowForDate(Date date) {
-        long time = date.getTime();
-        long roundedTime = time - time % WINDOW_FOR_LOCATION_AGGREGATION; // drop part not multiple of WINDOW_FOR_LOCATION_AGGREGATION
-        date.setTime(roundedTime);
+        date.setTime(getWindowForTime(date.getTime()));
         return date;
     }
 
+    static long getWindowForTime(long time) {
+        return time - time % WINDOW_FOR_LOCATION_AGGREGATION; // drop part not multiple of WINDOW_FOR_LOCATION_AGGREGATION
+    }
+
     /**
      * Adds a position to the position list. Every WINDOW_FOR_LOCATION_AGGREGATION time, it should send the mean value of the
      * positions to the DataSender
@@ -33,10 +36,17 @@ public interface PositionAggregator {
     void addPosition(Location location, Date date);
 
     default void addPosition(Location location) {
-        addPosition(location, Calendar.getInstance().getTime());
+        addPosition(location, CoronaGame.getClock().now());
     }
 
     void updateToOffline();
 
+    /**
+     * Registers what the aggregator still holds (the current window, a stay in progress) and stops
+     * aggregating. By default, there is nothing to do.
+     */
+    default void close() {
+    }
+
     void updateToOnline();
 }
\ No newline at end of file
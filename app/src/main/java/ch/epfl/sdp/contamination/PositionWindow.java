@@ -0,0 +1,179 @@
+package ch.epfl.sdp.contamination;
+
+/**
+ * Fixes of the current aggregation window, stored in primitive ring buffers (latitude, longitude
+ * and accuracy) along with running sums. Adding a fix and computing the centroid do not allocate.
+ * When more fixes than the capacity arrive during a window, the oldest ones are overwritten.
+ * <p>
+ * The centroid weights each fix by the inverse of its squared accuracy radius, fixes without
+ * accuracy get the weight of a REFERENCE_ACCURACY one. The spread of the window is tracked
+ * incrementally (weighted Welford algorithm), so that a fix lying too far from the centroid with
+ * respect to both that spread and its own accuracy is rejected as a GPS jump.
+ */
+final class PositionWindow {
+
+    // [m] Accuracy of a fix of weight 1
+    static final float REFERENCE_ACCURACY = 10;
+    // Fixes farther than this many standard deviations from the centroid are outliers
+    static final double OUTLIER_DEVIATIONS = 3;
+    // Fixes are only rejected once the window has enough of them to estimate its spread
+    static final int MIN_FIXES_FOR_REJECTION = 3;
+
+    private static final double METERS_PER_DEGREE = 111_320;
+
+    private final double[] latitudes;
+    private final double[] longitudes;
+    private final float[] accuracies;
+    private int first = 0;
+    private int size = 0;
+    private int rejected = 0;
+
+    private double weightSum = 0;
+    private double latitudeSum = 0;
+    private double longitudeSum = 0;
+    // Welford accumulators: weighted mean (degrees) and sum of squared deviations (m^2)
+    private double meanLatitude = 0;
+    private double meanLongitude = 0;
+    private double squaredDeviations = 0;
+
+    PositionWindow(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("The window must hold at least one position");
+        }
+        latitudes = new double[capacity];
+        longitudes = new double[capacity];
+        accuracies = new float[capacity];
+    }
+
+    private static double weight(float accuracy) {
+        if (accuracy <= 0) {
+            // Unknown accuracy
+            return 1;
+        }
+        double ratio = REFERENCE_ACCURACY / accuracy;
+        return ratio * ratio;
+    }
+
+    // [m^2] Squared distance between two nearby points, on a locally flat earth
+    private static double squaredDistance(double latitude, double dLatitude, double dLongitude) {
+        double north = dLatitude * METERS_PER_DEGREE;
+        double east = dLongitude * METERS_PER_DEGREE * Math.cos(Math.toRadians(latitude));
+        return north * north + east * east;
+    }
+
+    /**
+     * @param accuracy [m] radius of the fix, 0 if unknown
+     * @return false if the fix was rejected as an outlier
+     */
+    boolean add(double latitude, double longitude, float accuracy) {
+        if (isOutlier(latitude, longitude, accuracy)) {
+            ++rejected;
+            return false;
+        }
+
+        int slot = (first + size) % latitudes.length;
+        boolean overwrite = size == latitudes.length;
+        if (overwrite) {
+            first = (first + 1) % latitudes.length;
+        } else {
+            ++size;
+        }
+        latitudes[slot] = latitude;
+        longitudes[slot] = longitude;
+        accuracies[slot] = accuracy;
+
+        if (overwrite) {
+            // Removing a fix from the accumulators is not numerically stable: start over
+            resetAccumulators();
+            for (int i = 0; i < size; ++i) {
+                int index = (first + i) % latitudes.length;
+                accumulate(latitudes[index], longitudes[index], accuracies[index]);
+            }
+        } else {
+            accumulate(latitude, longitude, accuracy);
+        }
+        return true;
+    }
+
+    // Fixes without accuracy cannot be compared with the spread of the window
+    private boolean isOutlier(double latitude, double longitude, float accuracy) {
+        if (size < MIN_FIXES_FOR_REJECTION || accuracy <= 0) {
+            return false;
+        }
+        double distance = squaredDistance(meanLatitude, latitude - meanLatitude, longitude - meanLongitude);
+        double tolerance = squaredDeviations / weightSum + (double) accuracy * accuracy;
+        return distance > OUTLIER_DEVIATIONS * OUTLIER_DEVIATIONS * tolerance;
+    }
+
+    private void accumulate(double latitude, double longitude, float accuracy) {
+        double w = weight(accuracy);
+        weightSum += w;
+        latitudeSum += w * latitude;
+        longitudeSum += w * longitude;
+
+        double dLatitude = latitude - meanLatitude;
+        double dLongitude = longitude - meanLongitude;
+        meanLatitude += w / weightSum * dLatitude;
+        meanLongitude += w / weightSum * dLongitude;
+        // Product of the deviations to the previous and the updated mean
+        double north = METERS_PER_DEGREE * METERS_PER_DEGREE * dLatitude * (latitude - meanLatitude);
+        double cos = Math.cos(Math.toRadians(meanLatitude));
+        double east = METERS_PER_DEGREE * METERS_PER_DEGREE * cos * cos * dLongitude * (longitude - meanLongitude);
+        squaredDeviations += w * (north + east);
+    }
+
+    private void resetAccumulators() {
+        weightSum = 0;
+        latitudeSum = 0;
+        longitudeSum = 0;
+        meanLatitude = 0;
+        meanLongitude = 0;
+        squaredDeviations = 0;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of fixes rejected since the window was cleared
+     */
+    int rejectedCount() {
+        return rejected;
+    }
+
+    double meanLatitude() {
+        checkNotEmpty();
+        return latitudeSum / weightSum;
+    }
+
+    double meanLongitude() {
+        checkNotEmpty();
+        return longitudeSum / weightSum;
+    }
+
+    /**
+     * @return [m] weighted standard deviation of the fixes around the centroid
+     */
+    double standardDeviation() {
+        checkNotEmpty();
+        return Math.sqrt(Math.max(0, squaredDeviations / weightSum));
+    }
+
+    void clear() {
+        first = 0;
+        size = 0;
+        rejected = 0;
+        resetAccumulators();
+    }
+
+    private void checkNotEmpty() {
+        if (size == 0) {
+            throw new IllegalStateException("The window is empty");
+        }
+    }
+}
@@ -58,6 +58,31 @@ public interface CachingDataSender {
      */
     CompletableFuture<Void> registerLocation(Carrier carrier, Location location, Date time);
 
+    /**
+     * Records that the carrier, whose location was registered at 'start', stayed in the same grid
+     * cell until 'end', instead of registering every window in between.
+     * By default, only the end of the stay is registered.
+     *
+     * @param location : location of the stay, rounded by ~1 meter
+     * @return a future notification of success or failure.
+     */
+    default CompletableFuture<Void> registerDwell(Carrier carrier, Location location, Date start, Date end) {
+        return registerLocation(carrier, location, end);
+    }
+
+    /**
+     * Tells the sender whether Internet is available. By default, it is ignored.
+     */
+    default void onConnectivityChanged(boolean isOnline) {
+    }
+
+    /**
+     * Writes and uploads what the sender still buffers, once it is not needed anymore. By default,
+     * there is nothing to do.
+     */
+    default void close() {
+    }
+
     /**
      * Notifies a user he has been close to an infected person
      *
@@ -94,4 +119,19 @@ public interface CachingDataSender {
      * @return: positions send to firebase during the last UNINTENTIONAL_CONTAGION_TIME time.
      */
     SortedMap<Date, Location> getLastPositions();
+
+    /**
+     * @return the positions of getLastPositions() registered at or after 'since'
+     */
+    default SortedMap<Date, Location> getPositionsSince(Date since) {
+        return getLastPositions().tailMap(since);
+    }
+
+    /**
+     * getLastPositions() and getPositionsSince() do not block: until this completes, they may miss
+     * the positions stored by previous runs, that are still loading. By default, nothing is loaded.
+     */
+    default CompletableFuture<Void> whenPositionsLoaded() {
+        return CompletableFuture.completedFuture(null);
+    }
 }
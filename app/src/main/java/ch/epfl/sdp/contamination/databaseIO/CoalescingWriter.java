@@ -0,0 +1,104 @@
+package ch.epfl.sdp.contamination.databaseIO;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+import ch.epfl.sdp.utilities.Clock;
+
+/**
+ * Writes a value that is overwritten by each new one (latest value wins), at most once every
+ * 'minInterval' ms. Values submitted while a write is delayed replace each other: only the last
+ * one is written, and the futures returned for all of them complete with that write.
+ *
+ * @param <T> The type of the values
+ */
+final class CoalescingWriter<T> {
+
+    private final Function<T, CompletableFuture<Void>> write;
+    private final Clock clock;
+    private long minInterval;
+
+    // Guarded by this
+    private boolean hasWritten = false;
+    private long lastWriteTime;
+    private T pendingValue;
+    private CompletableFuture<Void> pendingFuture;
+    private Clock.Cancellable pendingWrite;
+
+    CoalescingWriter(Function<T, CompletableFuture<Void>> write, Clock clock, long minInterval) {
+        if (write == null || clock == null) {
+            throw new IllegalArgumentException();
+        }
+        this.write = write;
+        this.clock = clock;
+        setMinInterval(minInterval);
+    }
+
+    synchronized void setMinInterval(long minInterval) {
+        if (minInterval < 0) {
+            throw new IllegalArgumentException("The interval cannot be negative");
+        }
+        this.minInterval = minInterval;
+    }
+
+    /**
+     * @return a future notification of the write that includes this value
+     */
+    CompletableFuture<Void> submit(T value) {
+        CompletableFuture<Void> future;
+        boolean writeNow = false;
+        synchronized (this) {
+            pendingValue = value;
+            future = pendingFuture;
+            if (future == null) {
+                future = pendingFuture = new CompletableFuture<>();
+                long delay = hasWritten ? lastWriteTime + minInterval - clock.currentTimeMillis() : 0;
+                if (delay <= 0) {
+                    writeNow = true;
+                } else {
+                    pendingWrite = clock.schedule(this::flush, delay);
+                }
+            }
+        }
+        if (writeNow) {
+            flush();
+        }
+        return future;
+    }
+
+    /**
+     * Writes the pending value, if any, without waiting for the end of the interval
+     */
+    CompletableFuture<Void> flush() {
+        T value;
+        CompletableFuture<Void> future;
+        synchronized (this) {
+            if (pendingFuture == null) {
+                return CompletableFuture.completedFuture(null);
+            }
+            if (pendingWrite != null) {
+                pendingWrite.cancel();
+                pendingWrite = null;
+            }
+            value = pendingValue;
+            future = pendingFuture;
+            pendingValue = null;
+            pendingFuture = null;
+            hasWritten = true;
+            lastWriteTime = clock.currentTimeMillis();
+        }
+
+        try {
+            write.apply(value).whenComplete((ignored, e) -> {
+                if (e == null) {
+                    future.complete(null);
+                } else {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+}
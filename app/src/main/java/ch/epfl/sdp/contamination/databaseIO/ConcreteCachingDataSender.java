@@ -1,27 +1,44 @@
 package ch.epfl.sdp.contamination.databaseIO;
 
 import android.location.Location;
+import android.util.Log;
 
 import androidx.annotation.VisibleForTesting;
 
 import com.google.firebase.Timestamp;
+import com.google.firebase.firestore.DocumentReference;
 import com.google.firebase.firestore.GeoPoint;
+import com.google.firebase.firestore.WriteBatch;
 
+import java.io.File;
 import java.io.IOException;
-import java.text.ParseException;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
 
 import ch.epfl.sdp.CoronaGame;
 import ch.epfl.sdp.contamination.Carrier;
+import ch.epfl.sdp.contamination.Neighbor;
+import ch.epfl.sdp.contamination.PositionAggregator;
+import ch.epfl.sdp.contamination.databaseIO.UploadQueue.PendingUpload;
+import ch.epfl.sdp.firestore.FirestoreInteractor;
 import ch.epfl.sdp.identity.AuthenticationManager;
+import ch.epfl.sdp.storage.BinaryFormat;
+import ch.epfl.sdp.storage.CommitPolicy;
 import ch.epfl.sdp.storage.ConcreteManager;
+import ch.epfl.sdp.storage.CsvFormat;
+import ch.epfl.sdp.storage.KeyCodec;
+import ch.epfl.sdp.storage.LoadingFailedException;
+import ch.epfl.sdp.storage.SegmentedManager;
 import ch.epfl.sdp.storage.StorageManager;
+import ch.epfl.sdp.utilities.Clock;
 
 import static ch.epfl.sdp.firestore.FirestoreInteractor.documentReference;
 import static ch.epfl.sdp.firestore.FirestoreLabels.GEOPOINT_TAG;
@@ -33,17 +50,142 @@ import static ch.epfl.sdp.firestore.FirestoreLabels.TIMESTAMP_TAG;
 
 /**
  * Implementation of a DataSender with a cache
+ * <p>
+ * Uploads can be batched (see setUploadBatching()): the writes of several windows are then
+ * committed together in a single Firestore WriteBatch, so that the radio wakes up once per batch.
+ * <p>
+ * The positions uploaded to the History, that are only used to draw paths, can be compressed (see
+ * setHistoryCompression()), including those replayed from the queue. The grid and the local cache
+ * get every position, since contacts are looked for at each of them.
+ * <p>
+ * While offline, windows are kept in a durable UploadQueue, as well as the windows and stays whose
+ * upload failed. Once connectivity comes back, the queue is drained by batches, with an
+ * exponential backoff when a batch cannot be committed.
  */
 public class ConcreteCachingDataSender implements CachingDataSender {
 
-    private final StorageManager<Date, Location> positionHistory;
-    private final ReentrantLock lock;
+    // Positions are stored in rolling files, each covering this time span [ms]
+    private static final int POSITIONS_SEGMENT_LENGTH = MAX_CACHE_ENTRY_AGE / 12;
+    // The readers are served by recentPositions: the store only caches its last segment
+    private static final int POSITIONS_HOT_WINDOW = POSITIONS_SEGMENT_LENGTH;
+    private static final String POSITIONS_DIRECTORY = "last_positions";
+    private static final String LEGACY_BINARY_FILENAME = "last_positions.bin";
+    private static final String LEGACY_CSV_FILENAME = "last_positions.csv";
+    // A position is written every few seconds: commit them by groups, and at least every few
+    // minutes (the commit policy only checks its delay on writes, a timer syncs them)
+    private static final int POSITIONS_COMMIT_GROUP = 16;
+    private static final int POSITIONS_COMMIT_DELAY = 5 * 60 * 1000;
+    // A Firestore batch holds up to 500 writes: 5 per window and 2 per dwell (at most one per
+    // window) while the legacy cells are written, and the last position of the batch
+    static final int MAX_BATCHED_WINDOWS = 70;
+    // Positions held back by the compression, at most a few minutes
+    private static final int HISTORY_MAX_PENDING = 15;
+    private static final String UPLOAD_QUEUE_FILENAME = "pending_uploads.bin";
+    // About 11 hours of windows
+    private static final int UPLOAD_QUEUE_CAPACITY = 2000;
+    // Windows and dwells replayed per batch: up to 5 writes each, and the History flush
+    private static final int DRAIN_CHUNK = 90;
+    // [ms] Delay between two batches, doubled after each failure up to DRAIN_MAX_DELAY
+    private static final long DRAIN_BASE_DELAY = 1000;
+    private static final long DRAIN_MAX_DELAY = 5 * 60 * 1000;
+    // [ms] Only the latest position matters to the readers of LastPositions
+    private static final long LAST_POSITION_INTERVAL = 3L * PositionAggregator.WINDOW_FOR_LOCATION_AGGREGATION;
+
+    // The manager is thread-safe: only its replacement, if the stored positions cannot be loaded,
+    // needs to be published
+    private volatile StorageManager<Date, Location> positionHistory;
+    // Recent positions served to the readers, the stored ones are added once loaded
+    private final RecentPositions recentPositions = new RecentPositions(MAX_CACHE_ENTRY_AGE);
+    private final CompletableFuture<Void> recentPositionsLoaded = new CompletableFuture<>();
     private GridFirestoreInteractor gridInteractor;
+    // Commits the batches whose delay expired and dates the cached positions
+    private final Clock clock;
+
+    // Uploads are not batched while maxBatchedWindows is 1
+    private volatile int maxBatchedWindows = 1;
+    private volatile long maxBatchDelay = 0;
+    // Batch being filled, guarded by batchLock
+    private final Object batchLock = new Object();
+    private WriteBatch batch;
+    private int batchedWindows;
+    private Map<String, Object> batchedLastPosition;
+    // Uploads of the batch, queued if it cannot be committed
+    private Map<Date, PendingUpload> batchedUploads;
+    private CompletableFuture<Void> batchFuture;
+    private Clock.Cancellable batchTimer;
+    // The History is not compressed while historyTolerance is 0 (default), guarded by historyLock
+    private final Object historyLock = new Object();
+    private double historyTolerance = 0;
+    private TrajectoryCompressor<HistoryPoint> historyCompressor;
+    // File I/O is done on ioExecutor, never on the Firestore callbacks (main thread) or the clock
+    // thread
+    private final Executor ioExecutor;
+    private final Clock.Cancellable positionsSync;
+    // Uploads that could not be performed, only accessed from ioExecutor
+    private final UploadQueue uploadQueue;
+    private boolean isDraining = false;
+    private int drainFailures = 0;
+    private volatile boolean isOnline = true;
+    private final CoalescingWriter<Map<String, Object>> lastPositionWriter;
+    // Time of the latest position submitted to LastPositions
+    private volatile long lastPositionTime = Long.MIN_VALUE;
 
     public ConcreteCachingDataSender(GridFirestoreInteractor interactor) {
-        this.lock = new ReentrantLock();
+        this(interactor, CoronaGame.getClock());
+    }
+
+    public ConcreteCachingDataSender(GridFirestoreInteractor interactor, Clock clock) {
+        this(interactor, clock, Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "CachingDataSenderIO");
+            thread.setDaemon(true);
+            return thread;
+        }));
+    }
+
+    @VisibleForTesting
+    ConcreteCachingDataSender(GridFirestoreInteractor interactor, Clock clock, Executor ioExecutor) {
         this.gridInteractor = interactor;
-        this.positionHistory = initStorageManager();
+        this.ioExecutor = ioExecutor;
+        this.clock = clock;
+        this.positionHistory = openStorageManager();
+        recoverIfUnreadable(positionHistory);
+        loadRecentPositions(positionHistory);
+        this.uploadQueue = new UploadQueue(CoronaGame.getContext(), UPLOAD_QUEUE_FILENAME, UPLOAD_QUEUE_CAPACITY);
+        this.lastPositionWriter = new CoalescingWriter<>(
+                element -> gridInteractor.writeDocumentWithID(lastPositionReference(), element),
+                clock, LAST_POSITION_INTERVAL);
+        this.positionsSync = clock.scheduleAtFixedRate(() -> ioExecutor.execute(this::syncPositions),
+                POSITIONS_COMMIT_DELAY, POSITIONS_COMMIT_DELAY);
+    }
+
+    private void syncPositions() {
+        try {
+            positionHistory.sync();
+        } catch (IOException | RuntimeException e) {
+            Log.e("POSITION_HISTORY", "Could not commit the positions", e);
+        }
+    }
+
+    /**
+     * Commits the pending batch, the buffered positions, the delayed write of LastPositions and the
+     * position held back by the History compression, if any. The sender must not be used anymore.
+     */
+    @Override
+    public void close() {
+        positionsSync.cancel();
+        flushUploads();
+        lastPositionWriter.flush();
+        synchronized (historyLock) {
+            flushHistory();
+        }
+        ioExecutor.execute(this::syncPositions);
+    }
+
+    /**
+     * Writes LastPositions at most once every 'interval' ms, with the latest registered position
+     */
+    public void setLastPositionInterval(long interval) {
+        lastPositionWriter.setMinInterval(interval);
     }
 
     static Location stringToLocation(String s) {
@@ -73,30 +215,57 @@ public class ConcreteCachingDataSender implements CachingDataSender {
     }
 
     private StorageManager<Date, Location> openStorageManager() {
-        return new ConcreteManager<>(
+        // Positions written by previous versions in a single file (CSV or binary) are imported
+        // into the segments on first load
+        StorageManager<Date, Location> legacy = null;
+        File filesDir = CoronaGame.getContext().getFilesDir();
+        if (new File(filesDir, LEGACY_BINARY_FILENAME).exists() || new File(filesDir, LEGACY_CSV_FILENAME).exists()) {
+            legacy = new ConcreteManager<>(
+                    CoronaGame.getContext(),
+                    LEGACY_BINARY_FILENAME,
+                    BinaryFormat.forDates(BinaryFormat.LOCATION_VALUES),
+                    LEGACY_CSV_FILENAME,
+                    new CsvFormat<>(KeyCodec.EPOCH_MILLIS, ConcreteCachingDataSender::stringToLocation)
+            );
+        }
+
+        SegmentedManager<Date, Location> manager = new SegmentedManager<>(
                 CoronaGame.getContext(),
-                "last_positions.csv",
-                date_position -> {
-                    try {
-                        return CoronaGame.dateFormat.parse(date_position);
-                    } catch (ParseException e) {
-                        throw new IllegalArgumentException("The file specified has wrong format: field 'date_position'");
-                    }
-                }, ConcreteCachingDataSender::stringToLocation
+                POSITIONS_DIRECTORY,
+                BinaryFormat.forDates(BinaryFormat.LOCATION_VALUES),
+                Date::getTime,
+                POSITIONS_SEGMENT_LENGTH,
+                MAX_CACHE_ENTRY_AGE,
+                legacy,
+                POSITIONS_HOT_WINDOW
         );
+        manager.setCommitPolicy(new CommitPolicy(
+                CommitPolicy.Durability.FLUSH, POSITIONS_COMMIT_GROUP, POSITIONS_COMMIT_DELAY));
+        return manager;
     }
 
-    // Load previous probabilities history
-    private StorageManager<Date, Location> initStorageManager() {
-
-        StorageManager<Date, Location> cm = openStorageManager();
-
-        if (!cm.isReadable()) {
-            cm.delete();
-            cm = openStorageManager();
-        }
+    // Previous positions are loaded in background: if they turn out to be unreadable,
+    // start over with a history that only contains the positions registered meanwhile
+    private void recoverIfUnreadable(StorageManager<Date, Location> history) {
+        history.whenReady().exceptionally(e -> {
+            history.delete();
+            positionHistory = openStorageManager();
+            LoadingFailedException.replayDroppedWrites(e, positionHistory);
+            return null;
+        });
+    }
 
-        return cm;
+    private void loadRecentPositions(StorageManager<Date, Location> history) {
+        history.whenReady().thenRun(() -> {
+            long now = clock.currentTimeMillis();
+            history.forEachInRange(new Date(now - MAX_CACHE_ENTRY_AGE + 1), new Date(Long.MAX_VALUE), (time, location) ->
+                    recentPositions.add(time.getTime(), location.getLatitude(), location.getLongitude(), now));
+            recentPositionsLoaded.complete(null);
+        }).exceptionally(e -> {
+            // The history starts over empty
+            recentPositionsLoaded.complete(null);
+            return null;
+        });
     }
 
     @VisibleForTesting
@@ -104,13 +273,324 @@ public class ConcreteCachingDataSender implements CachingDataSender {
         this.gridInteractor = interactor;
     }
 
+    @Override
+    public void onConnectivityChanged(boolean isOnline) {
+        this.isOnline = isOnline;
+        if (isOnline) {
+            // Spread the reconnections of the users over a few seconds
+            scheduleDrain(ThreadLocalRandom.current().nextLong(DRAIN_BASE_DELAY * 5));
+        }
+    }
+
+    /**
+     * Reads the queue on the calling thread: only for tests running ioExecutor inline
+     */
+    @VisibleForTesting
+    int pendingUploadCount() {
+        return uploadQueue.size();
+    }
+
+    private void enqueue(Date time, PendingUpload upload) {
+        enqueue(Collections.singletonMap(time, upload));
+    }
+
+    private void enqueue(Map<Date, PendingUpload> uploads) {
+        ioExecutor.execute(() -> {
+            try {
+                uploads.forEach(uploadQueue::offer);
+            } catch (RuntimeException e) {
+                Log.e("UPLOAD_QUEUE", "Could not queue the uploads", e);
+            }
+        });
+    }
+
+    private void scheduleDrain(long delay) {
+        ioExecutor.execute(() -> {
+            if (!uploadQueue.isLoaded()) {
+                uploadQueue.whenReady().thenRun(() -> scheduleDrain(delay));
+                return;
+            }
+            try {
+                if (isDraining || uploadQueue.isEmpty()) {
+                    return;
+                }
+            } catch (RuntimeException e) {
+                Log.e("UPLOAD_QUEUE", "Could not read the queued uploads", e);
+                return;
+            }
+            isDraining = true;
+            clock.schedule(() -> ioExecutor.execute(this::drainChunk), delay);
+        });
+    }
+
+    // Replays the oldest queued uploads in a single batch, then schedules the next one. Once the
+    // queue is drained, LastPositions gets the last replayed window, unless a later one was written.
+    // Runs on ioExecutor.
+    private void drainChunk() {
+        SortedMap<Date, PendingUpload> chunk;
+        WriteBatch replay;
+        Date lastTime = null;
+        Map<String, Object> lastPosition = null;
+        try {
+            if (!isOnline) {
+                isDraining = false;
+                return;
+            }
+            chunk = new TreeMap<>(uploadQueue.oldest(DRAIN_CHUNK));
+            replay = FirestoreInteractor.batch();
+            // Uploads too old to matter to anyone are dropped
+            long oldestUseful = clock.currentTimeMillis() - MAX_CACHE_ENTRY_AGE;
+            String userId = AuthenticationManager.getUserId();
+            // The History of a chunk is compressed on its own, up to its last window
+            TrajectoryCompressor<HistoryPoint> compressor = newHistoryCompressor();
+            for (Map.Entry<Date, PendingUpload> entry : chunk.entrySet()) {
+                Date time = entry.getKey();
+                if (time.getTime() >= oldestUseful) {
+                    Map<String, Object> element = addReplay(replay, compressor, time, entry.getValue(), userId);
+                    if (element != null) {
+                        lastTime = time;
+                        lastPosition = element;
+                    }
+                }
+            }
+            HistoryPoint last = compressor == null ? null : compressor.flush();
+            if (last != null) {
+                replay.set(last.reference, last.element);
+            }
+        } catch (RuntimeException e) {
+            Log.e("UPLOAD_QUEUE", "Could not read the queued uploads", e);
+            isDraining = false;
+            return;
+        }
+
+        Date replayedTime = lastTime;
+        Map<String, Object> replayedPosition = lastPosition;
+        gridInteractor.commitBatch(replay).whenComplete((ignored, e) -> ioExecutor.execute(() -> {
+            long delay;
+            if (e == null) {
+                boolean isDrained = false;
+                try {
+                    uploadQueue.remove(chunk.keySet());
+                    isDrained = uploadQueue.isEmpty();
+                } catch (RuntimeException removeFailure) {
+                    // Replayed again later, which has no effect
+                    Log.e("UPLOAD_QUEUE", "Could not remove the replayed uploads", removeFailure);
+                }
+                if (isDrained && replayedPosition != null && replayedTime.getTime() > lastPositionTime) {
+                    lastPositionTime = replayedTime.getTime();
+                    lastPositionWriter.submit(replayedPosition);
+                }
+                drainFailures = 0;
+                delay = DRAIN_BASE_DELAY;
+            } else {
+                delay = Math.min(DRAIN_MAX_DELAY, DRAIN_BASE_DELAY << Math.min(++drainFailures, 20));
+                // Randomized, so that users failing together do not retry together
+                delay = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+            }
+            isDraining = false;
+            scheduleDrain(delay);
+        }));
+    }
+
+    // Same writes as registerLocation() and registerDwell(), with the state of the carrier when
+    // the window was registered. Writing them twice has no effect, if a batch is replayed again.
+    // Returns the position of a window, for LastPositions, or null for a dwell.
+    private Map<String, Object> addReplay(WriteBatch replay, TrajectoryCompressor<HistoryPoint> compressor, Date time,
+                                          PendingUpload upload, String userId) {
+        Location location = new Location("provider");
+        location.setLatitude(upload.latitude);
+        location.setLongitude(upload.longitude);
+        if (upload.isDwell()) {
+            gridInteractor.gridDwell(replay, location, upload.dwellStart, time.getTime());
+            return null;
+        } else {
+            Carrier carrier = new Neighbor(upload.status, upload.illnessProbability, userId);
+            Map<String, Object> element = positionElement(carrier, location, time);
+            HistoryPoint point = new HistoryPoint(historyReference(carrier, time), element);
+            if (compressor != null) {
+                point = compressor.add(time.getTime(), upload.latitude, upload.longitude, point);
+            }
+            if (point != null) {
+                replay.set(point.reference, point.element);
+            }
+            gridInteractor.gridWrite(replay, location, String.valueOf(time.getTime()), carrier);
+            return element;
+        }
+    }
+
+    /**
+     * Only uploads to the History the positions needed to draw the path within 'tolerance' meters
+     * of every registered position. A tolerance of 0 (default) uploads every position.
+     */
+    public void setHistoryCompression(double tolerance) {
+        if (tolerance < 0) {
+            throw new IllegalArgumentException("The tolerance cannot be negative");
+        }
+        synchronized (historyLock) {
+            flushHistory();
+            historyTolerance = tolerance;
+            historyCompressor = newHistoryCompressor();
+        }
+    }
+
+    private TrajectoryCompressor<HistoryPoint> newHistoryCompressor() {
+        synchronized (historyLock) {
+            return historyTolerance == 0 ? null : new TrajectoryCompressor<>(historyTolerance, HISTORY_MAX_PENDING);
+        }
+    }
+
+    // Uploads the position held back by the compression, if any. Called with historyLock held.
+    private void flushHistory() {
+        HistoryPoint pending = historyCompressor == null ? null : historyCompressor.flush();
+        if (pending != null) {
+            gridInteractor.writeDocumentWithID(pending.reference, pending.element);
+        }
+    }
+
+    // Returns the position to upload to the History, if any
+    private HistoryPoint compressHistory(Location location, Date time, HistoryPoint point) {
+        synchronized (historyLock) {
+            if (historyCompressor == null) {
+                return point;
+            }
+            return historyCompressor.add(time.getTime(), location.getLatitude(), location.getLongitude(), point);
+        }
+    }
+
+    /**
+     * Uploads the next windows by batches of up to 'maxWindows' windows, each committed at most
+     * 'maxDelay' ms after its first window. The futures returned for the windows of a batch
+     * complete together, when it is committed.
+     * With maxWindows = 1 (default), every window is uploaded as soon as it is registered.
+     */
+    public void setUploadBatching(int maxWindows, long maxDelay) {
+        if (maxWindows <= 0 || maxWindows > MAX_BATCHED_WINDOWS || maxDelay < 0) {
+            throw new IllegalArgumentException("Invalid batch size or delay");
+        }
+        flushUploads();
+        this.maxBatchDelay = maxDelay;
+        this.maxBatchedWindows = maxWindows;
+    }
+
+    /**
+     * Commits the batch being filled, if any
+     *
+     * @return a future notification of the success or failure of the commit
+     */
+    public CompletableFuture<Void> flushUploads() {
+        WriteBatch toCommit;
+        CompletableFuture<Void> future;
+        Map<Date, PendingUpload> uploads;
+        synchronized (batchLock) {
+            if (batch == null) {
+                return CompletableFuture.completedFuture(null);
+            }
+            toCommit = batch;
+            // Only the last position of the batch matters
+            toCommit.set(lastPositionReference(), batchedLastPosition);
+            future = batchFuture;
+            uploads = batchedUploads;
+            if (batchTimer != null) {
+                batchTimer.cancel();
+            }
+            batch = null;
+            batchedWindows = 0;
+            batchedLastPosition = null;
+            batchedUploads = null;
+            batchFuture = null;
+            batchTimer = null;
+        }
+
+        gridInteractor.commitBatch(toCommit).whenComplete((ignored, e) -> {
+            if (e == null) {
+                future.complete(null);
+            } else {
+                // None of the writes was applied: retried later, the failure is still reported
+                enqueue(uploads);
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    private CompletableFuture<Void> addToBatch(Location location, Date time, Carrier carrier,
+                                               Map<String, Object> element, HistoryPoint historyPoint) {
+        CompletableFuture<Void> future;
+        boolean isFull;
+        synchronized (batchLock) {
+            if (batch == null) {
+                batch = FirestoreInteractor.batch();
+                batchFuture = new CompletableFuture<>();
+                batchedUploads = new TreeMap<>();
+                batchTimer = clock.schedule(this::flushUploads, maxBatchDelay);
+            }
+            batchedUploads.put(time, PendingUpload.window(location.getLatitude(), location.getLongitude(), carrier));
+            if (historyPoint != null) {
+                batch.set(historyPoint.reference, historyPoint.element);
+            }
+            gridInteractor.gridWrite(batch, location, String.valueOf(time.getTime()), carrier);
+            batchedLastPosition = element;
+            future = batchFuture;
+            isFull = ++batchedWindows >= maxBatchedWindows;
+        }
+        if (isFull) {
+            flushUploads();
+        }
+        return future;
+    }
+
+    private static DocumentReference historyReference(Carrier carrier, Date time) {
+        return documentReference(
+                HISTORY_COLL + "/" + carrier.getUniqueId() + "/" + HISTORY_POSITIONS_DOC, "TS" + time.getTime());
+    }
+
+    private static DocumentReference lastPositionReference() {
+        return documentReference(LAST_POSITIONS_COLL, AuthenticationManager.getUserId());
+    }
+
     @Override
     public CompletableFuture<Void> registerLocation(Carrier carrier, Location location, Date time) {
         location = CachingDataSender.roundLocation(location);
-        CompletableFuture<Void> historyFuture, lastPositionsFuture, gridWriteFuture;
+        CompletableFuture<Void> windowFuture;
 
         refreshLastPositions(time, location);
 
+        if (!isOnline) {
+            enqueue(time, PendingUpload.window(location.getLatitude(), location.getLongitude(), carrier));
+            return CompletableFuture.completedFuture(null);
+        }
+
+        Map<String, Object> element = positionElement(carrier, location, time);
+        lastPositionTime = time.getTime();
+
+        HistoryPoint historyPoint = compressHistory(location, time, new HistoryPoint(historyReference(carrier, time), element));
+
+        if (maxBatchedWindows > 1) {
+            return addToBatch(location, time, carrier, element, historyPoint);
+        }
+
+        // May be delayed and replaced by a later position: the caller does not wait for it
+        lastPositionWriter.submit(element);
+
+        // The documents of the window are committed together, in a single round trip
+        WriteBatch window = FirestoreInteractor.batch();
+        if (historyPoint != null) {
+            window.set(historyPoint.reference, historyPoint.element);
+        }
+        gridInteractor.gridWrite(window, location, String.valueOf(time.getTime()), carrier);
+        windowFuture = gridInteractor.commitBatch(window);
+
+        // None of the writes was applied: retried later, the failure is still reported
+        PendingUpload retry = PendingUpload.window(location.getLatitude(), location.getLongitude(), carrier);
+        windowFuture.exceptionally(e -> {
+            enqueue(time, retry);
+            return null;
+        });
+
+        return windowFuture;
+    }
+
+    private static Map<String, Object> positionElement(Carrier carrier, Location location, Date time) {
         Map<String, Object> element = new HashMap<>();
         element.put(GEOPOINT_TAG, new GeoPoint(
                 location.getLatitude(),
@@ -118,46 +598,67 @@ public class ConcreteCachingDataSender implements CachingDataSender {
         ));
         element.put(TIMESTAMP_TAG, new Timestamp(time));
         element.put(INFECTION_STATUS_TAG, carrier.getInfectionStatus());
+        return element;
+    }
 
-        historyFuture = gridInteractor.writeDocumentWithID(documentReference(
-                HISTORY_COLL + "/" + carrier.getUniqueId() + "/" + HISTORY_POSITIONS_DOC, "TS" + time.getTime()), element);
-
-        lastPositionsFuture = gridInteractor.writeDocumentWithID(
-                documentReference(LAST_POSITIONS_COLL, AuthenticationManager.getUserId()), element);
-
-        gridWriteFuture = gridInteractor.gridWrite(location, String.valueOf(time.getTime()), carrier);
-
-        return CompletableFuture.allOf(historyFuture, lastPositionsFuture, gridWriteFuture);
+    @Override
+    public CompletableFuture<Void> registerDwell(Carrier carrier, Location location, Date start, Date end) {
+        location = CachingDataSender.roundLocation(location);
+        // The local history gets the end of the stay, so that the model checks this cell until then
+        refreshLastPositions(end, location);
+        PendingUpload dwell = PendingUpload.dwell(location.getLatitude(), location.getLongitude(), start);
+        if (!isOnline) {
+            enqueue(end, dwell);
+            return CompletableFuture.completedFuture(null);
+        }
+        synchronized (batchLock) {
+            // The stay is extended in the batch that holds its start, if not committed yet
+            if (batch != null) {
+                gridInteractor.gridDwell(batch, location, start.getTime(), end.getTime());
+                batchedUploads.put(end, dwell);
+                return batchFuture;
+            }
+        }
+        CompletableFuture<Void> dwellFuture = gridInteractor.gridDwell(location, start.getTime(), end.getTime());
+        dwellFuture.exceptionally(e -> {
+            enqueue(end, dwell);
+            return null;
+        });
+        return dwellFuture;
     }
 
     // Removes every locations older than PRE-SYMPTOMATIC_CONTAGION_TIME ms and adds a new position
     private void refreshLastPositions(Date time, Location geoPoint) {
         SortedMap<Date, Location> hist = new TreeMap();
         hist.put(time, geoPoint);
-        lock.lock();
-        try {
-            positionHistory.write(hist);
+        positionHistory.write(hist);
+        recentPositions.add(time.getTime(), geoPoint.getLatitude(), geoPoint.getLongitude(), clock.currentTimeMillis());
+    }
 
-            positionHistory.close();
-        } catch (IOException e) {
-            e.printStackTrace();
-        } finally {
-            lock.unlock();
-        }
+    @Override
+    public SortedMap<Date, Location> getLastPositions() {
+        return getPositionsSince(new Date(Long.MIN_VALUE));
+    }
 
+    @Override
+    public CompletableFuture<Void> whenPositionsLoaded() {
+        return recentPositionsLoaded;
     }
 
     @Override
-    public SortedMap<Date, Location> getLastPositions() {
-        // Return a copy of the cache to avoid conflicts
-        Date lastDate = new Date(System.currentTimeMillis() - MAX_CACHE_ENTRY_AGE);
-        SortedMap<Date, Location> lastPos;
-        lock.lock();
-        try {
-            lastPos = positionHistory.filter((date, geoP) -> date.after(lastDate));
-        } finally {
-            lock.unlock();
+    public SortedMap<Date, Location> getPositionsSince(Date since) {
+        // Return a read-only snapshot, without blocking concurrent writers
+        return recentPositions.since(since.getTime(), clock.currentTimeMillis());
+    }
+
+    // Document of the History, built when the position is registered
+    private static final class HistoryPoint {
+        private final DocumentReference reference;
+        private final Map<String, Object> element;
+
+        private HistoryPoint(DocumentReference reference, Map<String, Object> element) {
+            this.reference = reference;
+            this.element = element;
         }
-        return lastPos;
     }
 }
@@ -11,6 +11,7 @@ import com.google.firebase.firestore.GeoPoint;
 
 import org.jetbrains.annotations.NotNull;
 
+import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
@@ -20,45 +21,70 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
+import ch.epfl.sdp.CoronaGame;
 import ch.epfl.sdp.contamination.Carrier;
 import ch.epfl.sdp.contamination.Neighbor;
+import ch.epfl.sdp.contamination.PositionAggregator;
+import ch.epfl.sdp.utilities.Clock;
 
 import static ch.epfl.sdp.firestore.FirestoreInteractor.documentReference;
 import static ch.epfl.sdp.firestore.FirestoreInteractor.getTag;
+import static ch.epfl.sdp.firestore.FirestoreLabels.DWELL_END_TAG;
 import static ch.epfl.sdp.firestore.FirestoreLabels.GEOPOINT_TAG;
 import static ch.epfl.sdp.firestore.FirestoreLabels.ILLNESS_PROBABILITY_TAG;
 import static ch.epfl.sdp.firestore.FirestoreLabels.INFECTION_STATUS_TAG;
 import static ch.epfl.sdp.firestore.FirestoreLabels.UNIQUE_ID_TAG;
 import static ch.epfl.sdp.firestore.FirestoreLabels.UNIXTIME_TAG;
+import static ch.epfl.sdp.firestore.FirestoreLabels.UNIXTIME_VALUE_TAG;
 import static ch.epfl.sdp.firestore.FirestoreLabels.privateUserFolder;
 import static ch.epfl.sdp.firestore.FirestoreLabels.publicUserFolder;
 
 public class ConcreteDataReceiver implements DataReceiver {
 
+    // Slices of the grid read while updating the infection model, mostly in the same cells
+    private static final int SLICE_CACHE_CAPACITY = 512;
+    // [ms]
+    private static final long SLICE_CACHE_TIME_TO_LIVE = 30 * 60 * 1000;
+
     private GridFirestoreInteractor interactor;
+    private final GridReadCache sliceCache;
 
     public ConcreteDataReceiver(GridFirestoreInteractor gridInteractor) {
+        this(gridInteractor, CoronaGame.getClock());
+    }
+
+    public ConcreteDataReceiver(GridFirestoreInteractor gridInteractor, Clock clock) {
         this.interactor = gridInteractor;
+        this.sliceCache = new GridReadCache(clock, SLICE_CACHE_CAPACITY, SLICE_CACHE_TIME_TO_LIVE);
     }
 
     @VisibleForTesting
     void setInteractor(GridFirestoreInteractor interactor) {
         this.interactor = interactor;
+        sliceCache.clear();
+    }
+
+    @VisibleForTesting
+    GridReadCache getSliceCache() {
+        return sliceCache;
+    }
+
+    private CompletableFuture<Map<String, Map<String, Object>>> readSlice(String cell, long time) {
+        return sliceCache.get(cell, time, () -> interactor.gridRead(cell, time));
     }
 
+    /**
+     * A stay is only written at its start, with its end: the carriers found are those whose
+     * presence, a single window or a stay, includes 'date'
+     */
     @Override
     public CompletableFuture<Set<Carrier>> getUserNearby(Location location, Date date) {
-
-        return interactor.gridRead(location, date.getTime()).thenApply(stringMapMap -> {
-            Set<Carrier> carriers = new HashSet<>();
-            for (Map.Entry<String, Map<String, Object>> doc : stringMapMap.entrySet()) {
-                carriers.add(createNeighbor(doc)
-                );
-            }
-            return carriers;
-        }).exceptionally(exception -> Collections.emptySet());
+        return getUserNearbyDuring(location, date, date)
+                .thenApply(met -> (Set<Carrier>) new HashSet<>(met.keySet()))
+                .exceptionally(exception -> Collections.emptySet());
     }
 
     @NotNull
@@ -69,14 +95,26 @@ public class ConcreteDataReceiver implements DataReceiver {
                 getTag(doc.getValue(), UNIQUE_ID_TAG, String.class));
     }
 
-    private Set<Long> filterValidTimes(long startDate, long endDate, Map<String, Map<String, Object>> snapshot) {
-        Set<Long> validTimes = new HashSet<>();
+    /**
+     * @return the times of the presences overlapping [startDate, endDate], each with the number of
+     * aggregation windows it shares with that interval (more than one for a dwell)
+     */
+    private Map<Long, Integer> filterValidTimes(long startDate, long endDate, Map<String, Map<String, Object>> snapshot) {
+        Map<Long, Integer> validTimes = new HashMap<>();
         for (Map.Entry<String, Map<String, Object>> q : snapshot.entrySet()) {
             try {
-                long time = Long.decode(getTag(q.getValue(), UNIXTIME_TAG, String.class));
+                // Only the documents of the legacy cells may lack the numeric time
+                Object timeValue = q.getValue().get(UNIXTIME_VALUE_TAG);
+                long time = timeValue instanceof Number ? ((Number) timeValue).longValue()
+                        : Long.decode(getTag(q.getValue(), UNIXTIME_TAG, String.class));
+                long dwellEnd = time;
+                if (q.getValue().get(DWELL_END_TAG) != null) {
+                    dwellEnd = Long.decode(getTag(q.getValue(), DWELL_END_TAG, String.class));
+                }
 
-                if (startDate <= time && time <= endDate) {
-                    validTimes.add(time);
+                if (time <= endDate && startDate <= dwellEnd) {
+                    long overlap = Math.min(endDate, dwellEnd) - Math.max(startDate, time);
+                    validTimes.put(time, 1 + (int) (overlap / PositionAggregator.WINDOW_FOR_LOCATION_AGGREGATION));
                 }
             } catch (NumberFormatException ignore) {
             }
@@ -84,20 +122,22 @@ public class ConcreteDataReceiver implements DataReceiver {
         return validTimes;
     }
 
-    private Map<Carrier, Integer> collectCarriersMetDuringInterval(Stream<Map<String, Map<String, Object>>> results) {
+    private Map<Carrier, Integer> collectCarriersMetDuringInterval(Stream<Map.Entry<Integer, Map<String, Map<String, Object>>>> results) {
 
         Map<Carrier, Integer> metDuringInterval = new HashMap<>();
         results.forEach(res -> {
-            for (Map.Entry<String, Map<String, Object>> doc : res.entrySet()) {
+            // A carrier is met once per slice, whatever the IDs of its documents
+            Set<Carrier> inSlice = new HashSet<>();
+            for (Map.Entry<String, Map<String, Object>> doc : res.getValue().entrySet()) {
                 Carrier c = createNeighbor(doc);
+                if (!inSlice.add(c)) {
+                    continue;
+                }
 
                 Log.e("MET_DURING_INTERVAL", c.getInfectionStatus() + ", " + c.getIllnessProbability());
 
-                int numberOfMeetings = 1;
-                if (metDuringInterval.containsKey(c)) {
-                    numberOfMeetings += metDuringInterval.get(c);
-                }
-                metDuringInterval.put(c, numberOfMeetings);
+                // A dwell counts as a meeting per window
+                metDuringInterval.merge(c, res.getKey(), Integer::sum);
             }
         });
 
@@ -107,24 +147,50 @@ public class ConcreteDataReceiver implements DataReceiver {
     @Override
     public CompletableFuture<Map<Carrier, Integer>> getUserNearbyDuring(Location location,
                                                                         Date startDate, Date endDate) {
-        return interactor.getTimes(location)
-                .thenApply(stringMapMap -> filterValidTimes(startDate.getTime(), endDate.getTime(), stringMapMap))
+        // The nearby cells are read in parallel, a carrier being in a single cell at a time
+        List<String> cellIds = new ArrayList<>(GridFirestoreInteractor.getNearbyGridIds(location));
+        List<CompletableFuture<Map<Carrier, Integer>>> cells = new ArrayList<>();
+        for (String cell : cellIds) {
+            cells.add(getUserInCellDuring(cell, startDate.getTime(), endDate.getTime()));
+        }
+
+        return CompletableFuture.allOf(cells.toArray(new CompletableFuture[cells.size()])).thenApply(ignoredVoid -> {
+            Map<Carrier, Integer> metDuringInterval = new HashMap<>();
+            Map<Carrier, Integer> metInLegacyCells = new HashMap<>();
+            for (int i = 0; i < cells.size(); ++i) {
+                Map<Carrier, Integer> met = GridFirestoreInteractor.isLegacyGridId(cellIds.get(i)) ? metInLegacyCells : metDuringInterval;
+                cells.get(i).join().forEach((carrier, windowCount) -> met.merge(carrier, windowCount, Integer::sum));
+            }
+            // The carriers of the current versions are written to both kinds of cells: count them once
+            metInLegacyCells.forEach((carrier, windowCount) -> metDuringInterval.merge(carrier, windowCount, Math::max));
+            return metDuringInterval;
+        });
+    }
+
+    private CompletableFuture<Map<Carrier, Integer>> getUserInCellDuring(String cell, long startDate, long endDate) {
+        return interactor.getTimes(cell, startDate, endDate)
+                .thenApply(stringMapMap -> filterValidTimes(startDate, endDate, stringMapMap))
                 .thenApply(filtered -> {
                     if (filtered.size() > 0) {
-                        Log.e("FILTERED_TIMES", Long.toString(filtered.iterator().next()));
+                        Log.e("FILTERED_TIMES", Long.toString(filtered.keySet().iterator().next()));
                     }
                     return filtered;
                 })
                 .thenCompose(validTimes -> {
                     // Retrieve all the Carrier met at each time
+                    List<Integer> windows = new ArrayList<>();
                     List<CompletableFuture<Map<String, Map<String, Object>>>> metDuringSlices = new ArrayList<>();
-                    validTimes.forEach(tm -> metDuringSlices.add(interactor.gridRead(location, tm)));
+                    validTimes.forEach((tm, windowCount) -> {
+                        windows.add(windowCount);
+                        metDuringSlices.add(readSlice(cell, tm));
+                    });
 
                     CompletableFuture<Void> carriersForTimeSlice = CompletableFuture.allOf(metDuringSlices.toArray(new CompletableFuture[metDuringSlices.size()]));
 
                     return carriersForTimeSlice.thenApply(ignoredVoid -> {
                         // Create a Map containing all the Carriers met during this interval
-                        Stream<Map<String, Map<String, Object>>> results = metDuringSlices.stream().map(CompletableFuture::join);
+                        Stream<Map.Entry<Integer, Map<String, Map<String, Object>>>> results = IntStream.range(0, windows.size())
+                                .mapToObj(i -> new AbstractMap.SimpleImmutableEntry<>(windows.get(i), metDuringSlices.get(i).join()));
                         return collectCarriersMetDuringInterval(results);
                     });
                 })
@@ -0,0 +1,97 @@
+package ch.epfl.sdp.contamination.databaseIO;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Geohash cells: the world is split in two alternately along longitudes and latitudes, each
+ * character of the hash encoding 5 such splits. Cells are hierarchical, the prefix of a hash being
+ * the key of the enclosing cell.
+ */
+final class GeoHash {
+
+    private static final String BASE_32 = "0123456789bcdefghjkmnpqrstuvwxyz";
+    private static final double METERS_PER_DEGREE = 111_320;
+
+    private GeoHash() {
+    }
+
+    /**
+     * @return the key of the cell of 'precision' characters that contains the given point
+     */
+    static String encode(double latitude, double longitude, int precision) {
+        if (precision <= 0) {
+            throw new IllegalArgumentException("The precision must be positive");
+        }
+        double minLatitude = -90;
+        double maxLatitude = 90;
+        double minLongitude = -180;
+        double maxLongitude = 180;
+        boolean isLongitude = true;
+
+        StringBuilder hash = new StringBuilder(precision);
+        int bits = 0;
+        int value = 0;
+        while (hash.length() < precision) {
+            value <<= 1;
+            if (isLongitude) {
+                double middle = (minLongitude + maxLongitude) / 2;
+                if (longitude >= middle) {
+                    value |= 1;
+                    minLongitude = middle;
+                } else {
+                    maxLongitude = middle;
+                }
+            } else {
+                double middle = (minLatitude + maxLatitude) / 2;
+                if (latitude >= middle) {
+                    value |= 1;
+                    minLatitude = middle;
+                } else {
+                    maxLatitude = middle;
+                }
+            }
+            isLongitude = !isLongitude;
+
+            if (++bits == 5) {
+                hash.append(BASE_32.charAt(value));
+                bits = 0;
+                value = 0;
+            }
+        }
+        return hash.toString();
+    }
+
+    /**
+     * Enumerates the cell of the point and its neighbours that lie less than 'radius' meters away.
+     * The radius must be smaller than the cells, so that the cells reached are adjacent: most
+     * points only need their own cell, or one or three neighbours near a border or a corner.
+     *
+     * @param radius [m]
+     */
+    static Set<String> cellsAround(double latitude, double longitude, double radius, int precision) {
+        double dLatitude = radius / METERS_PER_DEGREE;
+        double dLongitude = radius / (METERS_PER_DEGREE * Math.max(Math.cos(Math.toRadians(latitude)), 1e-6));
+
+        // Cells intersecting the square around the point, without duplicates
+        Set<String> cells = new LinkedHashSet<>();
+        cells.add(encode(latitude, longitude, precision));
+        for (int i = -1; i <= 1; ++i) {
+            for (int j = -1; j <= 1; ++j) {
+                double neighborLatitude = Math.max(-90, Math.min(90, latitude + i * dLatitude));
+                cells.add(encode(neighborLatitude, normalizeLongitude(longitude + j * dLongitude), precision));
+            }
+        }
+        return cells;
+    }
+
+    private static double normalizeLongitude(double longitude) {
+        if (longitude >= 180) {
+            return longitude - 360;
+        }
+        if (longitude < -180) {
+            return longitude + 360;
+        }
+        return longitude;
+    }
+}
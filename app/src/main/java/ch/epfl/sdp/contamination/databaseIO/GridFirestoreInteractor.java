@@ -3,40 +3,100 @@ package ch.epfl.sdp.contamination.databaseIO;
 import android.location.Location;
 import android.util.Log;
 
+import com.google.firebase.firestore.DocumentReference;
+import com.google.firebase.firestore.WriteBatch;
+
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 
 import ch.epfl.sdp.contamination.Carrier;
+import ch.epfl.sdp.contamination.ConcretePositionAggregator;
 import ch.epfl.sdp.firestore.ConcreteFirestoreInteractor;
 
+import static ch.epfl.sdp.firestore.FirestoreLabels.DWELL_END_TAG;
 import static ch.epfl.sdp.firestore.FirestoreLabels.LAST_POSITIONS_COLL;
 import static ch.epfl.sdp.firestore.FirestoreLabels.LIVE_GRID_COLL;
 import static ch.epfl.sdp.firestore.FirestoreLabels.TIMES_LIST_COLL;
 import static ch.epfl.sdp.firestore.FirestoreLabels.UNIXTIME_TAG;
+import static ch.epfl.sdp.firestore.FirestoreLabels.UNIXTIME_VALUE_TAG;
 
 public class GridFirestoreInteractor extends ConcreteFirestoreInteractor {
 
-    // MODEL: Round the location to the 3th decimal digit
-    private static final int COORDINATE_PRECISION = 1000;
+    // MODEL: Carriers share a cell of 8 geohash characters (about 38 m by 19 m at the equator,
+    // narrower towards the poles), and meet the carriers of the neighbouring cells within
+    // CONTACT_RADIUS: carriers up to about 20 m apart always meet, as do those of the same cell
+    private static final int CELL_PRECISION = 8;
+    // [m]
+    private static final double CONTACT_RADIUS = 20;
+    // Cells of the previous versions, keyed by truncated coordinates: their Times documents may
+    // lack UNIXTIME_VALUE_TAG
+    static final String LEGACY_CELL_PREFIX = "Grid#";
+    private static final int LEGACY_COORDINATE_PRECISION = 1000;
+    // TRANSITION: the previous versions only use the legacy cells, which are read and written as
+    // well until they are no longer in use. Nothing is migrated: their content expires by itself.
+    private static final boolean READS_LEGACY_CELLS = true;
 
     public GridFirestoreInteractor() {
         super();
     }
 
-    private String getGridId(Location location) {
-        double latitude = location.getLatitude();
-        double longitude = location.getLongitude();
+    public static String getGridId(Location location) {
+        return GeoHash.encode(location.getLatitude(), location.getLongitude(), CELL_PRECISION);
+    }
+
+    /**
+     * @return the cell of 'location' and the neighbouring cells closer than CONTACT_RADIUS, and
+     * the legacy cell of 'location' during the transition
+     */
+    public static Set<String> getNearbyGridIds(Location location) {
+        Set<String> cells = GeoHash.cellsAround(location.getLatitude(), location.getLongitude(), CONTACT_RADIUS, CELL_PRECISION);
+        if (READS_LEGACY_CELLS) {
+            cells.add(getLegacyGridId(location));
+        }
+        return cells;
+    }
 
-        int idLatitude = (int) (latitude * COORDINATE_PRECISION);
-        int idLongitude = (int) (longitude * COORDINATE_PRECISION);
+    // The cells in which a presence at 'location' is written
+    private static List<String> getWrittenGridIds(Location location) {
+        if (READS_LEGACY_CELLS) {
+            return Arrays.asList(getGridId(location), getLegacyGridId(location));
+        }
+        return Collections.singletonList(getGridId(location));
+    }
 
-        return String.format("Grid#%d#%d", idLatitude, idLongitude);
+    static boolean isLegacyGridId(String cell) {
+        return cell.startsWith(LEGACY_CELL_PREFIX);
     }
 
-    public CompletableFuture<Map<String, Map<String, Object>>> getTimes(Location location) {
-        String path = LIVE_GRID_COLL + "/" + getGridId(location) + "/" + TIMES_LIST_COLL;
-        return readCollection(collectionReference(path));
+    /**
+     * @return the key of the cell that the previous versions use for 'location'
+     */
+    static String getLegacyGridId(Location location) {
+        int idLatitude = (int) (location.getLatitude() * LEGACY_COORDINATE_PRECISION);
+        int idLongitude = (int) (location.getLongitude() * LEGACY_COORDINATE_PRECISION);
+        return String.format("%s%d#%d", LEGACY_CELL_PREFIX, idLatitude, idLongitude);
+    }
+
+    /**
+     * Reads the times at which carriers were in 'cell' that may overlap [start, end]: the filter
+     * runs on the server, dwells that started up to MAX_DWELL_DURATION before 'start' are
+     * included and must still be checked against their end.
+     * The legacy cells are read whole, since a range query would drop their documents without
+     * UNIXTIME_VALUE_TAG: their times must all be checked.
+     */
+    public CompletableFuture<Map<String, Map<String, Object>>> getTimes(String cell, long start, long end) {
+        String path = LIVE_GRID_COLL + "/" + cell + "/" + TIMES_LIST_COLL;
+        if (isLegacyGridId(cell)) {
+            return readCollection(collectionReference(path));
+        }
+        return readCollection(collectionReference(path)
+                .whereGreaterThanOrEqualTo(UNIXTIME_VALUE_TAG, start - ConcretePositionAggregator.MAX_DWELL_DURATION)
+                .whereLessThanOrEqualTo(UNIXTIME_VALUE_TAG, end));
     }
 
     public CompletableFuture<Map<String, Object>> readLastLocation(String accountId) {
@@ -44,20 +104,71 @@ public class GridFirestoreInteractor extends ConcreteFirestoreInteractor {
     }
 
 
-    public CompletableFuture<Map<String, Map<String, Object>>> gridRead(Location location, long time) {
-        String path = LIVE_GRID_COLL + "/" + getGridId(location) + "/" + time;
+    public CompletableFuture<Map<String, Map<String, Object>>> gridRead(String cell, long time) {
+        String path = LIVE_GRID_COLL + "/" + cell + "/" + time;
         return readCollection(collectionReference(path));
     }
 
+    /**
+     * Registers the carrier in the cell of 'location' at 'time': both the time and the carrier
+     * documents are committed atomically, in a single round trip
+     *
+     * @return a future notification of the success or failure of both writes
+     */
     public CompletableFuture<Void> gridWrite(Location location, String time, Carrier carrier) {
+        Log.e("POSITION_UPLOAD", getGridId(location));
+
+        WriteBatch batch = batch();
+        gridWrite(batch, location, time, carrier);
+        return commitBatch(batch);
+    }
+
+    /**
+     * Adds the writes of gridWrite() to a batch. The carrier document is named after the carrier
+     * (its unique ID) rather than given a generated ID, so that committing the same writes again,
+     * as the upload queue does, does not duplicate it. Readers only use the fields of the
+     * documents, so the documents written with generated IDs are read the same way.
+     * During the transition, the presence is written to the legacy cell as well.
+     */
+    public void gridWrite(WriteBatch batch, Location location, String time, Carrier carrier) {
+        for (String cell : getWrittenGridIds(location)) {
+            batch.set(timeReference(cell, time), timeMap(time));
+            batch.set(documentReference(LIVE_GRID_COLL + "/" + cell + "/" + time, carrier.getUniqueId()), carrier);
+        }
+    }
+
+    /**
+     * Extends a presence written by gridWrite() at 'start' until 'end', in the same cells
+     */
+    public CompletableFuture<Void> gridDwell(Location location, long start, long end) {
+        WriteBatch batch = batch();
+        gridDwell(batch, location, start, end);
+        return commitBatch(batch);
+    }
+
+    /**
+     * Adds the writes of gridDwell() to a batch
+     */
+    public void gridDwell(WriteBatch batch, Location location, long start, long end) {
+        for (String cell : getWrittenGridIds(location)) {
+            batch.set(timeReference(cell, String.valueOf(start)), dwellMap(start, end));
+        }
+    }
+
+    private static DocumentReference timeReference(String cell, String time) {
+        return documentReference(LIVE_GRID_COLL + "/" + cell + "/" + TIMES_LIST_COLL, time);
+    }
+
+    private static Map<String, Object> timeMap(String time) {
         Map<String, Object> timeMap = new HashMap<>();
         timeMap.put(UNIXTIME_TAG, time);
+        timeMap.put(UNIXTIME_VALUE_TAG, Long.parseLong(time));
+        return timeMap;
+    }
 
-        Log.e("POSITION_UPLOAD", getGridId(location));
-
-        return writeDocumentWithID(
-                documentReference(LIVE_GRID_COLL + "/" + getGridId(location) + "/" + TIMES_LIST_COLL, time), timeMap)
-                .thenRun(() -> writeDocument(collectionReference(
-                        LIVE_GRID_COLL + "/" + getGridId(location) + "/" + time), carrier));
+    private static Map<String, Object> dwellMap(long start, long end) {
+        Map<String, Object> timeMap = timeMap(String.valueOf(start));
+        timeMap.put(DWELL_END_TAG, String.valueOf(end));
+        return timeMap;
     }
 }
@@ -0,0 +1,103 @@
+package ch.epfl.sdp.contamination.databaseIO;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+import ch.epfl.sdp.contamination.PositionAggregator;
+import ch.epfl.sdp.utilities.Clock;
+
+/**
+ * Bounded cache of the carriers read in a cell at a given time. Once its window is closed, such a
+ * slice of the grid no longer changes, so it is kept up to 'timeToLive' ms and the least recently
+ * used slices are evicted beyond 'capacity'. The slices of windows that may still be written are
+ * always read again.
+ * <p>
+ * The read futures themselves are cached, so that concurrent readers of a slice share its read.
+ * Failed and empty reads are not kept: they cannot be told apart.
+ */
+final class GridReadCache {
+
+    private final Clock clock;
+    private final int capacity;
+    private final long timeToLive;
+    // Guarded by this, in access order
+    private final LinkedHashMap<String, Slice> slices;
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * @param timeToLive [ms]
+     */
+    GridReadCache(Clock clock, int capacity, long timeToLive) {
+        if (capacity <= 0 || timeToLive <= 0) {
+            throw new IllegalArgumentException("Invalid capacity or time to live");
+        }
+        this.clock = clock;
+        this.capacity = capacity;
+        this.timeToLive = timeToLive;
+        this.slices = new LinkedHashMap<String, Slice>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Slice> eldest) {
+                return size() > GridReadCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * @return the cached slice of 'cell' at 'time', or the result of 'read' if there is none
+     */
+    CompletableFuture<Map<String, Map<String, Object>>> get(String cell, long time,
+                                                             Supplier<CompletableFuture<Map<String, Map<String, Object>>>> read) {
+        long now = clock.currentTimeMillis();
+        if (time > now - PositionAggregator.WINDOW_FOR_LOCATION_AGGREGATION) {
+            return read.get();
+        }
+
+        String key = cell + "/" + time;
+        Slice slice;
+        synchronized (this) {
+            slice = slices.get(key);
+            if (slice != null && slice.expiry > now) {
+                ++hits;
+                return slice.future;
+            }
+            ++misses;
+            slice = new Slice(read.get(), now + timeToLive);
+            slices.put(key, slice);
+        }
+
+        Slice added = slice;
+        slice.future.whenComplete((result, e) -> {
+            if (e != null || result.isEmpty()) {
+                synchronized (this) {
+                    slices.remove(key, added);
+                }
+            }
+        });
+        return slice.future;
+    }
+
+    synchronized void clear() {
+        slices.clear();
+    }
+
+    synchronized long hitCount() {
+        return hits;
+    }
+
+    synchronized long missCount() {
+        return misses;
+    }
+
+    private static final class Slice {
+        private final CompletableFuture<Map<String, Map<String, Object>>> future;
+        private final long expiry;
+
+        private Slice(CompletableFuture<Map<String, Map<String, Object>>> future, long expiry) {
+            this.future = future;
+            this.expiry = expiry;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package ch.epfl.sdp.contamination.databaseIO;
+
+import android.location.Location;
+
+import java.util.Date;
+import java.util.SortedMap;
+
+import ch.epfl.sdp.storage.TimeSeriesView;
+
+/**
+ * Positions of the last 'maxAge' ms, in a time-ordered ring of primitive arrays. Expired
+ * positions are evicted as new ones arrive, so that the recent positions can be served without
+ * going through the storage: the positions since a given time are found by binary search and
+ * copied in O(k).
+ */
+final class RecentPositions {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final long maxAge;
+    private long[] times = new long[INITIAL_CAPACITY];
+    private double[] latitudes = new double[INITIAL_CAPACITY];
+    private double[] longitudes = new double[INITIAL_CAPACITY];
+    private int first = 0;
+    private int size = 0;
+
+    /**
+     * @param maxAge [ms] positions older than that are evicted
+     */
+    RecentPositions(long maxAge) {
+        if (maxAge <= 0) {
+            throw new IllegalArgumentException("The maximal age must be positive");
+        }
+        this.maxAge = maxAge;
+    }
+
+    private int slot(int index) {
+        return (first + index) % times.length;
+    }
+
+    // Index of the first position at or after 'time'
+    private int lowerBound(long time) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (times[slot(middle)] < time) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private void evictBefore(long now) {
+        while (size > 0 && times[first] <= now - maxAge) {
+            first = (first + 1) % times.length;
+            --size;
+        }
+    }
+
+    /**
+     * Positions are expected in chronological order, older ones are inserted in place. A position
+     * at the same time as a previous one replaces it.
+     */
+    synchronized void add(long time, double latitude, double longitude, long now) {
+        evictBefore(now);
+        if (time <= now - maxAge) {
+            return;
+        }
+
+        int index = size == 0 || times[slot(size - 1)] < time ? size : lowerBound(time);
+        if (index < size && times[slot(index)] == time) {
+            latitudes[slot(index)] = latitude;
+            longitudes[slot(index)] = longitude;
+            return;
+        }
+
+        if (size == times.length) {
+            grow();
+        }
+        // Shift the later positions, if any
+        for (int i = size; i > index; --i) {
+            times[slot(i)] = times[slot(i - 1)];
+            latitudes[slot(i)] = latitudes[slot(i - 1)];
+            longitudes[slot(i)] = longitudes[slot(i - 1)];
+        }
+        times[slot(index)] = time;
+        latitudes[slot(index)] = latitude;
+        longitudes[slot(index)] = longitude;
+        ++size;
+    }
+
+    private void grow() {
+        int capacity = 2 * times.length;
+        long[] newTimes = new long[capacity];
+        double[] newLatitudes = new double[capacity];
+        double[] newLongitudes = new double[capacity];
+        for (int i = 0; i < size; ++i) {
+            newTimes[i] = times[slot(i)];
+            newLatitudes[i] = latitudes[slot(i)];
+            newLongitudes[i] = longitudes[slot(i)];
+        }
+        times = newTimes;
+        latitudes = newLatitudes;
+        longitudes = newLongitudes;
+        first = 0;
+    }
+
+    /**
+     * @return a read-only snapshot of the positions at or after 'from' that are not expired
+     */
+    synchronized SortedMap<Date, Location> since(long from, long now) {
+        evictBefore(now);
+        int start = lowerBound(from);
+        int count = size - start;
+
+        long[] snapshotTimes = new long[count];
+        double[] snapshotLatitudes = new double[count];
+        double[] snapshotLongitudes = new double[count];
+        for (int i = 0; i < count; ++i) {
+            int index = slot(start + i);
+            snapshotTimes[i] = times[index];
+            snapshotLatitudes[i] = latitudes[index];
+            snapshotLongitudes[i] = longitudes[index];
+        }
+        return new Snapshot(snapshotTimes, snapshotLatitudes, snapshotLongitudes, 0, count);
+    }
+
+    /**
+     * Immutable sorted map over a range of copied arrays. Locations are built when accessed.
+     */
+    private static final class Snapshot extends TimeSeriesView<Location> {
+        private final double[] latitudes;
+        private final double[] longitudes;
+
+        private Snapshot(long[] times, double[] latitudes, double[] longitudes, int from, int to) {
+            super(times, from, to);
+            this.latitudes = latitudes;
+            this.longitudes = longitudes;
+        }
+
+        @Override
+        protected Location valueAt(int index) {
+            Location res = new Location("provider");
+            res.reset();
+            res.setLatitude(latitudes[index]);
+            res.setLongitude(longitudes[index]);
+            return res;
+        }
+
+        @Override
+        protected Snapshot range(int from, int to) {
+            return new Snapshot(times, latitudes, longitudes, from, to);
+        }
+    }
+}
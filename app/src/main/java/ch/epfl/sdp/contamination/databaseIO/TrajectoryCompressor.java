@@ -0,0 +1,116 @@
+package ch.epfl.sdp.contamination.databaseIO;
+
+/**
+ * Online trajectory compression (opening window algorithm). A point is kept only if the segment
+ * joining the last kept point to a later one cannot stand for it: interpolating along that segment
+ * at the time of the point would be more than 'tolerance' meters away from it (synchronized
+ * euclidean distance). The polyline of the kept points thus stays within the tolerance of the
+ * whole trajectory, at any time.
+ * <p>
+ * A point is only known to be needed once a later one deviates, so kept points are returned with
+ * a delay of at most maxPending points.
+ *
+ * @param <T> The type of the payload that goes with each point
+ */
+final class TrajectoryCompressor<T> {
+
+    private static final double METERS_PER_DEGREE = 111_320;
+
+    private final double tolerance;
+    private final long[] times;
+    private final double[] latitudes;
+    private final double[] longitudes;
+    private T lastPayload;
+    private int pending = 0;
+
+    private boolean hasAnchor = false;
+    private long anchorTime;
+    private double anchorLatitude;
+    private double anchorLongitude;
+
+    /**
+     * @param tolerance  [m] largest distance between the trajectory and the kept polyline
+     * @param maxPending largest number of points held back
+     */
+    TrajectoryCompressor(double tolerance, int maxPending) {
+        if (tolerance < 0 || maxPending <= 0) {
+            throw new IllegalArgumentException("Invalid tolerance or number of pending points");
+        }
+        this.tolerance = tolerance;
+        times = new long[maxPending];
+        latitudes = new double[maxPending];
+        longitudes = new double[maxPending];
+    }
+
+    /**
+     * Points must be added in chronological order
+     *
+     * @return the payload of a point that must be kept, this one or a previous one, or null
+     */
+    T add(long time, double latitude, double longitude, T payload) {
+        if (!hasAnchor) {
+            setAnchor(time, latitude, longitude);
+            return payload;
+        }
+        if (pending < times.length && isCoveredBySegmentTo(time, latitude, longitude)) {
+            hold(time, latitude, longitude, payload);
+            return null;
+        }
+
+        // The last pending point is needed, the new one becomes the only pending point
+        T kept = flush();
+        hold(time, latitude, longitude, payload);
+        return kept;
+    }
+
+    /**
+     * Keeps the last pending point, if any, without waiting for a later one
+     *
+     * @return its payload, or null
+     */
+    T flush() {
+        if (pending == 0) {
+            return null;
+        }
+        setAnchor(times[pending - 1], latitudes[pending - 1], longitudes[pending - 1]);
+        T kept = lastPayload;
+        pending = 0;
+        lastPayload = null;
+        return kept;
+    }
+
+    private void setAnchor(long time, double latitude, double longitude) {
+        hasAnchor = true;
+        anchorTime = time;
+        anchorLatitude = latitude;
+        anchorLongitude = longitude;
+    }
+
+    private void hold(long time, double latitude, double longitude, T payload) {
+        times[pending] = time;
+        latitudes[pending] = latitude;
+        longitudes[pending] = longitude;
+        lastPayload = payload;
+        ++pending;
+    }
+
+    private boolean isCoveredBySegmentTo(long time, double latitude, double longitude) {
+        long duration = time - anchorTime;
+        for (int i = 0; i < pending; ++i) {
+            double ratio = duration == 0 ? 0 : (double) (times[i] - anchorTime) / duration;
+            double expectedLatitude = anchorLatitude + ratio * (latitude - anchorLatitude);
+            double expectedLongitude = anchorLongitude + ratio * (longitude - anchorLongitude);
+            if (distance(expectedLatitude, latitudes[i] - expectedLatitude, longitudes[i] - expectedLongitude) > tolerance) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // [m] Distance between two nearby points, on a locally flat earth
+    private static double distance(double latitude, double dLatitude, double dLongitude) {
+        double north = dLatitude * METERS_PER_DEGREE;
+        double east = dLongitude * METERS_PER_DEGREE * Math.cos(Math.toRadians(latitude));
+        return Math.sqrt(north * north + east * east);
+    }
+}
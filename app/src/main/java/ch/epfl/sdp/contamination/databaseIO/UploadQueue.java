@@ -0,0 +1,176 @@
+package ch.epfl.sdp.contamination.databaseIO;
+
+import android.content.Context;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+
+import ch.epfl.sdp.contamination.Carrier;
+import ch.epfl.sdp.storage.BinaryFormat;
+import ch.epfl.sdp.storage.ConcreteManager;
+
+/**
+ * Durable queue of the uploads that could not be performed, indexed by the time of their window.
+ * Its size is bounded: once full, the oldest half of the queued windows is thinned out (every
+ * other window is dropped), so that old periods keep being covered at a lower resolution.
+ * Dwell extensions are never dropped.
+ * <p>
+ * Not thread-safe: the sender serializes the accesses.
+ */
+final class UploadQueue {
+
+    private static final BinaryFormat.ValueCodec<PendingUpload> PENDING_UPLOADS = new BinaryFormat.ValueCodec<PendingUpload>() {
+        @Override
+        public int size() {
+            return 2 * Double.BYTES + Long.BYTES + Integer.BYTES + Float.BYTES;
+        }
+
+        @Override
+        public void put(ByteBuffer buffer, PendingUpload value) {
+            buffer.putDouble(value.latitude);
+            buffer.putDouble(value.longitude);
+            buffer.putLong(value.dwellStart);
+            buffer.putInt(value.status.ordinal());
+            buffer.putFloat(value.illnessProbability);
+        }
+
+        @Override
+        public PendingUpload get(ByteBuffer buffer) {
+            double latitude = buffer.getDouble();
+            double longitude = buffer.getDouble();
+            long dwellStart = buffer.getLong();
+            Carrier.InfectionStatus status = Carrier.InfectionStatus.values()[buffer.getInt()];
+            return new PendingUpload(latitude, longitude, dwellStart, status, buffer.getFloat());
+        }
+    };
+
+    private final ConcreteManager<Date, PendingUpload> storage;
+    private final int capacity;
+
+    UploadQueue(Context context, String filename, int capacity) {
+        if (capacity < 2) {
+            throw new IllegalArgumentException("The queue must hold at least two uploads");
+        }
+        this.storage = new ConcreteManager<>(context, filename, BinaryFormat.forDates(PENDING_UPLOADS));
+        this.capacity = capacity;
+    }
+
+    /**
+     * Does not block: while the queue is loading, uploads are queued without making room first
+     */
+    void offer(Date time, PendingUpload upload) {
+        if (storage.isLoaded() && size() >= capacity) {
+            thin();
+        }
+        SortedMap<Date, PendingUpload> entry = new TreeMap<>();
+        entry.put(time, upload);
+        storage.write(entry);
+    }
+
+    private void thin() {
+        SortedMap<Date, PendingUpload> content = storage.read();
+        List<Date> dropped = new ArrayList<>();
+        Iterator<Map.Entry<Date, PendingUpload>> entries = content.entrySet().iterator();
+        Map.Entry<Date, PendingUpload> next = entries.next();
+        boolean drop = false;
+        for (int i = 0; i < content.size() / 2; ++i) {
+            Map.Entry<Date, PendingUpload> entry = next;
+            next = entries.next();
+            // A dwell needs the window it extends
+            boolean isDwellStart = next.getValue().dwellStart == entry.getKey().getTime();
+            if (!entry.getValue().isDwell() && !isDwellStart) {
+                if (drop) {
+                    dropped.add(entry.getKey());
+                }
+                drop = !drop;
+            }
+        }
+        if (dropped.isEmpty()) {
+            // Only dwells: make room anyway
+            dropped.add(content.firstKey());
+        }
+        storage.remove(dropped);
+    }
+
+    /**
+     * @return a read-only view of the 'count' oldest uploads
+     */
+    SortedMap<Date, PendingUpload> oldest(int count) {
+        SortedMap<Date, PendingUpload> content = storage.read();
+        if (content.size() <= count) {
+            return content;
+        }
+        Iterator<Date> keys = content.keySet().iterator();
+        for (int i = 0; i < count; ++i) {
+            keys.next();
+        }
+        return content.headMap(keys.next());
+    }
+
+    void remove(Collection<Date> times) {
+        storage.remove(times);
+    }
+
+    /**
+     * The other reads block until the queue is loaded
+     */
+    CompletableFuture<?> whenReady() {
+        return storage.whenReady();
+    }
+
+    boolean isLoaded() {
+        return storage.isLoaded();
+    }
+
+    int size() {
+        return storage.read().size();
+    }
+
+    boolean isEmpty() {
+        return storage.read().isEmpty();
+    }
+
+    /**
+     * A window registered by registerLocation(), or the extension of a dwell by registerDwell()
+     */
+    static final class PendingUpload {
+        private static final long NO_DWELL = -1;
+
+        final double latitude;
+        final double longitude;
+        // Time of the window that the dwell extends
+        final long dwellStart;
+        // State of the carrier when the window was registered
+        final Carrier.InfectionStatus status;
+        final float illnessProbability;
+
+        private PendingUpload(double latitude, double longitude, long dwellStart,
+                              Carrier.InfectionStatus status, float illnessProbability) {
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.dwellStart = dwellStart;
+            this.status = status;
+            this.illnessProbability = illnessProbability;
+        }
+
+        static PendingUpload window(double latitude, double longitude, Carrier carrier) {
+            return new PendingUpload(latitude, longitude, NO_DWELL, carrier.getInfectionStatus(), carrier.getIllnessProbability());
+        }
+
+        static PendingUpload dwell(double latitude, double longitude, Date start) {
+            return new PendingUpload(latitude, longitude, start.getTime(), Carrier.InfectionStatus.UNKNOWN, 0);
+        }
+
+        boolean isDwell() {
+            return dwellStart != NO_DWELL;
+        }
+    }
+}
@@ -25,6 +25,7 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
+import ch.epfl.sdp.CoronaGame;
 import ch.epfl.sdp.R;
 import ch.epfl.sdp.contamination.InfectionAnalyst;
 import ch.epfl.sdp.identity.AuthenticationManager;
@@ -64,7 +65,7 @@ public class InfectionFragment extends Fragment implements View.OnClickListener
         infectionProbability = view.findViewById(R.id.my_infection_probability);
         view.findViewById(R.id.my_infection_refresh).setOnClickListener(this);
 
-        lastUpdateTime = System.currentTimeMillis();
+        lastUpdateTime = CoronaGame.getClock().currentTimeMillis();
 
         infectionStatus.setText(R.string.refresh_to_see_status);
 
@@ -97,7 +98,7 @@ public class InfectionFragment extends Fragment implements View.OnClickListener
     public void onModelRefresh(View v) {
 
         Date refreshTime = new Date(lastUpdateTime);
-        lastUpdateTime = System.currentTimeMillis();
+        lastUpdateTime = CoronaGame.getClock().currentTimeMillis();
 
         LocationService locationService = service.join();
 
@@ -105,7 +106,7 @@ public class InfectionFragment extends Fragment implements View.OnClickListener
             locationService.getReceiver()
                     .getMyLastLocation(AuthenticationManager.getUserId())
                     .thenCompose(location ->
-                            locationService.getAnalyst().updateInfectionPredictions(location, refreshTime, new Date()))
+                            locationService.getAnalyst().updateInfectionPredictions(location, refreshTime, CoronaGame.getClock().now()))
                     .thenAccept(todayInfectionMeetings -> requireActivity().runOnUiThread(() -> {
                         infectionStatus.setText(R.string.infection_status_posted);
                         uiHandler.post(() -> {
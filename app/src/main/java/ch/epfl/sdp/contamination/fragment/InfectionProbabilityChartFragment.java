@@ -37,6 +37,7 @@ import java.util.Map;
 import java.util.Observable;
 import java.util.Observer;
 
+import ch.epfl.sdp.CoronaGame;
 import ch.epfl.sdp.R;
 import ch.epfl.sdp.location.LocationService;
 
@@ -158,14 +159,7 @@ public class InfectionProbabilityChartFragment extends Fragment implements OnCha
         yAxis.addLimitLine(ll2);
     }
 
-    private List<Entry> generateData() {
-        if (service == null) throw new IllegalStateException();
-
-        Calendar calendar = Calendar.getInstance();
-        calendar.add(Calendar.MONTH, -1);
-        Date since = calendar.getTime();
-        Map<Date, Float> infectionHistory = service.getAnalyst().getCarrier().getIllnessProbabilityHistory(since);
-
+    private List<Entry> generateData(Map<Date, Float> infectionHistory) {
         infectionHistory.forEach((k, v) -> Log.e("CHART_DATA_PAYLOAD", k.toString() + ": " + v));
 
         ArrayList<Entry> values = new ArrayList<>();
@@ -184,16 +178,30 @@ public class InfectionProbabilityChartFragment extends Fragment implements OnCha
     }
 
     private void updateData() {
+        if (service == null) throw new IllegalStateException();
 
-        List<Entry> data = generateData();
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTime(CoronaGame.getClock().now());
+        calendar.add(Calendar.MONTH, -1);
+        Date since = calendar.getTime();
 
-        requireActivity().runOnUiThread(() -> {
-            if (chart.getData() != null) {
-                updateExistingDataSet(data);
-            } else {
-                createNewDataSet(data);
-            }
-        });
+        // The history may still be loading: do not block the UI thread meanwhile
+        service.getAnalyst().getCarrier().whenIllnessProbabilityHistoryLoaded(since)
+                .thenAccept(infectionHistory -> {
+                    List<Entry> data = generateData(infectionHistory);
+
+                    requireActivity().runOnUiThread(() -> {
+                        if (chart.getData() != null) {
+                            updateExistingDataSet(data);
+                        } else {
+                            createNewDataSet(data);
+                        }
+                    });
+                })
+                .exceptionally(e -> {
+                    Log.e("CHART_UPDATE", "Could not load the infection history", e);
+                    return null;
+                });
     }
 
     private void updateExistingDataSet(List<Entry> data) {
@@ -25,12 +25,12 @@ import androidx.fragment.app.Fragment;
 import com.google.firebase.firestore.DocumentReference;
 import com.google.firebase.firestore.FieldValue;
 
-import java.util.Calendar;
 import java.util.Date;
 import java.util.Observable;
 import java.util.Observer;
 import java.util.concurrent.Executor;
 
+import ch.epfl.sdp.CoronaGame;
 import ch.epfl.sdp.R;
 import ch.epfl.sdp.contamination.Carrier;
 import ch.epfl.sdp.identity.Account;
@@ -207,7 +207,7 @@ public class UserInfectionFragment extends Fragment implements View.OnClickListe
         if (IS_DEMO) {
             return true;
         } else {
-            Date currentTime = Calendar.getInstance().getTime();
+            Date currentTime = CoronaGame.getClock().now();
 
             // lastStatusChange is 1 jan 1970 by default (value for Date(0)).
             // This works as we want t check that the status has not been updated less than a day ago.
@@ -224,10 +224,10 @@ public class UserInfectionFragment extends Fragment implements View.OnClickListe
         CharSequence buttonText = infectionStatusButton.getText();
         boolean infected = buttonText.equals(getResources().getString(R.string.i_am_infected));
         if (infected) {
-            service.getAnalyst().getCarrier().evolveInfection(new Date(), INFECTED, 1f);
+            service.getAnalyst().getCarrier().evolveInfection(CoronaGame.getClock().now(), INFECTED, 1f);
             setInfectionColorAndMessage(true);
         } else {
-            service.getAnalyst().getCarrier().evolveInfection(new Date(), HEALTHY, 0f);
+            service.getAnalyst().getCarrier().evolveInfection(CoronaGame.getClock().now(), HEALTHY, 0f);
             sendRecoveryToFirebase();
             setInfectionColorAndMessage(false);
         }
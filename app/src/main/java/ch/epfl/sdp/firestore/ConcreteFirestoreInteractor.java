@@ -4,13 +4,19 @@ import com.google.android.gms.tasks.Task;
 import com.google.firebase.firestore.CollectionReference;
 import com.google.firebase.firestore.DocumentReference;
 import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.Query;
 import com.google.firebase.firestore.QuerySnapshot;
+import com.google.firebase.firestore.WriteBatch;
 
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
 
 /**
  * This class is the main and more generic implementation of the FirestoreInteractor, every other
@@ -18,6 +24,12 @@ import java.util.concurrent.CompletableFuture;
  */
 public class ConcreteFirestoreInteractor extends FirestoreInteractor {
 
+    // Reads in flight, shared by the identical reads issued meanwhile (by any interactor, as they
+    // all use the same Firestore instance). References and queries are equal when they target the
+    // same documents.
+    private static final ConcurrentMap<DocumentReference, CompletableFuture<Map<String, Object>>> documentReads = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<Query, CompletableFuture<Map<String, Map<String, Object>>>> collectionReads = new ConcurrentHashMap<>();
+
     private static Map<String, Map<String, Object>> parseCollection(QuerySnapshot collection) {
         List<DocumentSnapshot> list = collection.getDocuments();
         Map<String, Map<String, Object>> result = new HashMap<>();
@@ -27,10 +39,54 @@ public class ConcreteFirestoreInteractor extends FirestoreInteractor {
         return result;
     }
 
+    private static Map<String, Object> copyDocument(Map<String, Object> document) {
+        return new HashMap<>(document);
+    }
+
+    private static Map<String, Map<String, Object>> copyCollection(Map<String, Map<String, Object>> collection) {
+        Map<String, Map<String, Object>> copy = new HashMap<>();
+        collection.forEach((id, document) -> copy.put(id, copyDocument(document)));
+        return copy;
+    }
+
+    /**
+     * Performs 'read' unless an identical one is in flight, in which case its result is shared.
+     * Each caller gets its own 'copy' of the result, which it may modify as before.
+     */
+    private static <K, V> CompletableFuture<V> singleFlight(ConcurrentMap<K, CompletableFuture<V>> inFlight,
+                                                            K key, Supplier<CompletableFuture<V>> read,
+                                                            UnaryOperator<V> copy) {
+        CompletableFuture<V> shared = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, shared);
+        if (existing != null) {
+            return existing.thenApply(copy);
+        }
+
+        CompletableFuture<V> future;
+        try {
+            future = read.get();
+        } catch (RuntimeException e) {
+            future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+        }
+        future.whenComplete((result, e) -> {
+            // Later reads must see later writes
+            inFlight.remove(key, shared);
+            if (e == null) {
+                shared.complete(result);
+            } else {
+                shared.completeExceptionally(e);
+            }
+        });
+        return shared.thenApply(copy);
+    }
+
+    /**
+     * Concurrent reads of the same document share a single request
+     */
     @Override
     public CompletableFuture<Map<String, Object>> readDocument(DocumentReference documentReference) {
-
-        return taskToFuture(documentReference.get())
+        return singleFlight(documentReads, documentReference, () -> taskToFuture(documentReference.get())
                 .thenApply(
                         doc -> {
                             if (doc.exists()) {
@@ -39,22 +95,32 @@ public class ConcreteFirestoreInteractor extends FirestoreInteractor {
                                 // Document does not exist
                                 return Collections.emptyMap();
                             }
-                        });
+                        }), ConcreteFirestoreInteractor::copyDocument);
     }
 
     @Override
     public CompletableFuture<Map<String, Map<String, Object>>> readCollection(CollectionReference collectionReference) {
-        Task<QuerySnapshot> collectionTask = collectionReference.get();
-        CompletableFuture<QuerySnapshot> completableFuture = taskToFuture(collectionTask);
-        return completableFuture
-                .thenApply(collection -> {
-                    if (collection.isEmpty()) {
-                        throw new RuntimeException("Collection doesn't contain any document");
-                    } else {
-                        return parseCollection(collection);
-                    }
-                })
-                .exceptionally(e -> Collections.emptyMap());
+        return readCollection((Query) collectionReference);
+    }
+
+    /**
+     * Concurrent reads of the same documents share a single request
+     */
+    @Override
+    public CompletableFuture<Map<String, Map<String, Object>>> readCollection(Query query) {
+        return singleFlight(collectionReads, query, () -> {
+            Task<QuerySnapshot> collectionTask = query.get();
+            CompletableFuture<QuerySnapshot> completableFuture = taskToFuture(collectionTask);
+            return completableFuture
+                    .thenApply(collection -> {
+                        if (collection.isEmpty()) {
+                            throw new RuntimeException("Collection doesn't contain any document");
+                        } else {
+                            return parseCollection(collection);
+                        }
+                    })
+                    .exceptionally(e -> Collections.emptyMap());
+        }, ConcreteFirestoreInteractor::copyCollection);
     }
 
     @Override
@@ -68,4 +134,9 @@ public class ConcreteFirestoreInteractor extends FirestoreInteractor {
         Task<Void> writeTask = documentReference.set(document);
         return taskToFuture(writeTask);
     }
+
+    @Override
+    public CompletableFuture<Void> commitBatch(WriteBatch batch) {
+        return taskToFuture(batch.commit());
+    }
 }
\ No newline at end of file
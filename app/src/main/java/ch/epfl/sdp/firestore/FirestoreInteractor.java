@@ -4,6 +4,8 @@ import com.google.android.gms.tasks.Task;
 import com.google.firebase.firestore.CollectionReference;
 import com.google.firebase.firestore.DocumentReference;
 import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.Query;
+import com.google.firebase.firestore.WriteBatch;
 
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
@@ -83,6 +85,15 @@ public abstract class FirestoreInteractor {
         return collectionReference(path).document(documentID);
     }
 
+    /**
+     * Start a batch of writes, that will be applied atomically in a single round trip
+     *
+     * @return an empty batch, to be committed with commitBatch()
+     */
+    public static WriteBatch batch() {
+        return firestore.batch();
+    }
+
     /**
      * Read a single document
      *
@@ -101,6 +112,14 @@ public abstract class FirestoreInteractor {
     public abstract CompletableFuture<Map<String, Map<String, Object>>> readCollection(
             CollectionReference collectionReference);
 
+    /**
+     * Read only the documents of a collection that match a query
+     *
+     * @param query A query on a firestore Collection
+     * @return A future map containing all the pairs (DocumentID, DocumentData).
+     */
+    public abstract CompletableFuture<Map<String, Map<String, Object>>> readCollection(Query query);
+
     /**
      * Create or overwrite a single document at the desired location
      *
@@ -126,4 +145,12 @@ public abstract class FirestoreInteractor {
      */
     public abstract CompletableFuture<DocumentReference> writeDocument(
             CollectionReference collectionReference, Object document);
+
+    /**
+     * Apply all the writes of a batch created by batch()
+     *
+     * @param batch the writes to commit, none of them is applied if one fails
+     * @return a future notification of how the success/failure of the operation
+     */
+    public abstract CompletableFuture<Void> commitBatch(WriteBatch batch);
 }
\ No newline at end of file
@@ -29,19 +29,25 @@ public interface FirestoreLabels {
     String GEOPOINT_TAG = "geoPoint";
     String TIMESTAMP_TAG = "timeStamp";
 
-    // LiveGrid collection
+    // LiveGrid collection, keyed by geohash (older versions use Grid#[lat]#[long] keys, which are
+    // still read, and do not set TimeValue)
     String LIVE_GRID_COLL = "LiveGrid";
 
-    // LiveGrid/Grid#[lat]#[long]/[unixTime]/
+    // LiveGrid/[geohash]/[unixTime]/[uniqueId]/ (documents written by older versions have
+    // generated IDs instead of the unique ID of the carrier)
     String ILLNESS_PROBABILITY_TAG = "illnessProbability";
     String INFECTION_STATUS_TAG = "infectionStatus";
     String UNIQUE_ID_TAG = "uniqueId";
 
-    // LiveGrid/Grid#[lat]#[long]/
+    // LiveGrid/[geohash]/
     String TIMES_LIST_COLL = "Times";
 
-    // LiveGrid/Grid#[lat]#[long]/Times/[unixTime]
+    // LiveGrid/[geohash]/Times/[unixTime]
     String UNIXTIME_TAG = "Time";
+    // Same time as a number, for range queries
+    String UNIXTIME_VALUE_TAG = "TimeValue";
+    // Set when the carrier stayed in the cell from [unixTime] to this time (both as unix times)
+    String DWELL_END_TAG = "DwellEnd";
 
     String publicUserFolder = "publicUser/";
     String publicAlertAttribute = "recentlySickMeetingCounter";
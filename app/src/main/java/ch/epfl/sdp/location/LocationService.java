@@ -14,6 +14,7 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 import android.widget.Toast;
 
@@ -84,6 +85,7 @@ public class LocationService extends Service implements LocationListener, Observ
     private ConnectivityBroker broker;
     private final Observer internetObserver = (o, arg) -> {
         Log.e("LOCATION_SERVICE", "Showing service.......? " + ((boolean) arg));
+        sender.onConnectivityChanged((boolean) arg);
         if ((boolean) arg) {
             removeNotifications();
             showServiceNotification();
@@ -127,16 +129,17 @@ public class LocationService extends Service implements LocationListener, Observ
 
         alarmPending = PendingIntent.getService(this, 0, alarm, 0);
         alarmManager = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
+        // The alarm is fired by the system: it is set on its time, not on the clock of the app
         alarmManager.set(
-                AlarmManager.RTC,
-                System.currentTimeMillis() + alarmDelayMillis,
+                AlarmManager.ELAPSED_REALTIME,
+                SystemClock.elapsedRealtime() + alarmDelayMillis,
                 alarmPending);
 
         isAlarmSet = true;
     }
 
     private ObservableCarrier locallyLoadCarrier() {
-        lastUpdated = new Date(sharedPref.getLong(LAST_UPDATED_PREF, System.currentTimeMillis()));
+        lastUpdated = new Date(sharedPref.getLong(LAST_UPDATED_PREF, CoronaGame.getClock().currentTimeMillis()));
 
         float infectionProbability = sharedPref.getFloat(INFECTION_PROBABILITY_PREF, 0);
         InfectionStatus infectionStatus = InfectionStatus.values()[sharedPref.getInt(INFECTION_STATUS_PREF, InfectionStatus.HEALTHY.ordinal())];
@@ -204,6 +207,7 @@ public class LocationService extends Service implements LocationListener, Observ
 
         // Observe Internet connection
         ((ConcreteConnectivityBroker) broker).addObserver(internetObserver);
+        sender.onConnectivityChanged(broker.isProviderEnabled(INTERNET));
 
         sharedPref = this.getSharedPreferences(CoronaGame.SHARED_PREF_FILENAME, Context.MODE_PRIVATE);
 
@@ -223,7 +227,9 @@ public class LocationService extends Service implements LocationListener, Observ
      * since DataSender cache would have been partially emptied already
      */
     private void updateInfectionModel() {
-        SortedMap<Date, Location> locations = sender.getLastPositions().tailMap(lastUpdated);
+        // Runs in background: wait for the positions stored by previous runs
+        sender.whenPositionsLoaded().join();
+        SortedMap<Date, Location> locations = sender.getPositionsSince(lastUpdated);
 
         Log.e("POSITION_ITERATOR", Integer.toString(locations.size()));
         List<CompletableFuture<Integer>> operationFutures = new ArrayList<>();
@@ -328,7 +334,8 @@ public class LocationService extends Service implements LocationListener, Observ
     @Override
     public void onLocationChanged(Location location) {
         if (broker.hasPermissions(GPS)) {
-            AsyncTask.execute(() -> aggregator.addPosition(location));
+            // Only publishes the fix, the aggregation runs on its own scheduler
+            aggregator.addPosition(location);
         } else {
             displayToast("Missing Location permission");
         }
@@ -405,6 +412,13 @@ public class LocationService extends Service implements LocationListener, Observ
     public void onDestroy() {
         Log.e("LOCATION_SERVICE", "Destroying service ...");
         removeNotifications();
+        // The aggregator hands its last windows to the sender before it is closed
+        if (aggregator != null) {
+            aggregator.close();
+        }
+        if (sender != null) {
+            sender.close();
+        }
         super.onDestroy();
     }
 
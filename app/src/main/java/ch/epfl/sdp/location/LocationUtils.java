@@ -5,6 +5,8 @@ import android.location.Location;
 import android.location.LocationManager;
 import android.os.SystemClock;
 
+import ch.epfl.sdp.CoronaGame;
+
 public class LocationUtils {
 
     @TargetApi(17)
@@ -12,7 +14,7 @@ public class LocationUtils {
         Location l = new Location(LocationManager.GPS_PROVIDER);
         l.setLatitude(latitude);
         l.setLongitude(longitude);
-        l.setTime(System.currentTimeMillis());
+        l.setTime(CoronaGame.getClock().currentTimeMillis());
         // Also need to set the et field
         l.setElapsedRealtimeNanos(SystemClock.elapsedRealtimeNanos());
         l.setAltitude(400);
@@ -40,6 +40,7 @@ import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CompletableFuture;
 
+import ch.epfl.sdp.CoronaGame;
 import ch.epfl.sdp.R;
 import ch.epfl.sdp.contamination.Carrier;
 import ch.epfl.sdp.contamination.databaseIO.ConcreteDataReceiver;
@@ -152,7 +153,7 @@ public class PathsHandler {
     }
 
     private void setCalendar() {
-        Date rightNow = new Date(System.currentTimeMillis());
+        Date rightNow = CoronaGame.getClock().now();
         Calendar cal = Calendar.getInstance();
         cal.setTime(rightNow);
         cal.add(Calendar.DAY_OF_MONTH, -1);
@@ -0,0 +1,102 @@
+package ch.epfl.sdp.storage;
+
+import android.os.AsyncTask;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * Runs the initial loading of a StorageManager in background.
+ * Writes issued while loading are queued and applied, in order, as soon as the content is loaded,
+ * so that neither the writers nor the readers waiting on whenReady() block. If the loading fails,
+ * whenReady() completes with a LoadingFailedException that hands the queued writes back.
+ *
+ * @param <A> The type of the keys
+ * @param <B> The type of the values
+ */
+final class AsyncLoader<A extends Comparable<A>, B> {
+
+    private final CompletableFuture<Boolean> loaded = new CompletableFuture<>();
+    private final CompletableFuture<StorageManager<A, B>> ready = new CompletableFuture<>();
+    private final StorageManager<A, B> manager;
+    // Guarded by itself, as isLoaded
+    private final List<SortedMap<A, B>> pendingWrites = new ArrayList<>();
+    private boolean isLoaded = false;
+
+    AsyncLoader(StorageManager<A, B> manager) {
+        this.manager = manager;
+    }
+
+    /**
+     * @param after the loading starts once it completes, normally or not, without blocking a
+     *              thread meanwhile
+     * @param load  fills the cache, returns whether it succeeded
+     * @param write applies a write that was queued during the loading
+     */
+    void start(CompletableFuture<?> after, BooleanSupplier load, Consumer<SortedMap<A, B>> write) {
+        after.handle((result, e) -> null).thenRunAsync(() -> {
+            boolean result;
+            try {
+                result = load.getAsBoolean();
+            } catch (RuntimeException e) {
+                result = false;
+            }
+
+            List<SortedMap<A, B>> dropped = Collections.emptyList();
+            synchronized (pendingWrites) {
+                if (result) {
+                    pendingWrites.forEach(write);
+                } else {
+                    dropped = new ArrayList<>(pendingWrites);
+                }
+                pendingWrites.clear();
+                isLoaded = true;
+            }
+            loaded.complete(result);
+            if (result) {
+                ready.complete(manager);
+            } else {
+                ready.completeExceptionally(new LoadingFailedException(dropped));
+            }
+        }, AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    /**
+     * @return true if the payload was queued because the loading is still in progress
+     */
+    boolean deferWrite(SortedMap<A, B> payload) {
+        synchronized (pendingWrites) {
+            if (isLoaded) {
+                return false;
+            }
+            pendingWrites.add(new TreeMap<>(payload));
+            return true;
+        }
+    }
+
+    CompletableFuture<StorageManager<A, B>> whenReady() {
+        return ready;
+    }
+
+    /**
+     * Does not block
+     *
+     * @return whether the content is loaded, false while it is loading or if it could not be
+     */
+    boolean isLoaded() {
+        return loaded.getNow(false);
+    }
+
+    /**
+     * Blocks until the loading is over
+     */
+    boolean isLoadedSuccessfully() {
+        return loaded.join();
+    }
+}
@@ -0,0 +1,179 @@
+package ch.epfl.sdp.storage;
+
+import android.location.Location;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Date;
+import java.util.function.BiConsumer;
+import java.util.function.LongFunction;
+import java.util.function.ToLongFunction;
+
+/**
+ * Compact format made of fixed-width records: an 8 bytes key followed by a typed payload.
+ * The file starts with a small header (magic number and record width) so that a file written
+ * with another payload type is rejected instead of being misread.
+ * Loading memory-maps the file and decodes records in place, without going through Strings.
+ *
+ * @param <A> The type of the keys, which must be representable as a long (e.g. epoch millis)
+ * @param <B> The type of the values
+ */
+public class BinaryFormat<A, B> implements RecordFormat<A, B> {
+
+    public static final ValueCodec<Float> FLOAT_VALUES = new ValueCodec<Float>() {
+        @Override
+        public int size() {
+            return Float.BYTES;
+        }
+
+        @Override
+        public void put(ByteBuffer buffer, Float value) {
+            buffer.putFloat(value);
+        }
+
+        @Override
+        public Float get(ByteBuffer buffer) {
+            return buffer.getFloat();
+        }
+    };
+
+    // Only latitude and longitude are kept, as with the previous text representation
+    public static final ValueCodec<Location> LOCATION_VALUES = new ValueCodec<Location>() {
+        @Override
+        public int size() {
+            return 2 * Double.BYTES;
+        }
+
+        @Override
+        public void put(ByteBuffer buffer, Location value) {
+            buffer.putDouble(value.getLatitude());
+            buffer.putDouble(value.getLongitude());
+        }
+
+        @Override
+        public Location get(ByteBuffer buffer) {
+            Location res = new Location("provider");
+            res.reset();
+            res.setLatitude(buffer.getDouble());
+            res.setLongitude(buffer.getDouble());
+            return res;
+        }
+    };
+
+    static final int MAGIC = 0x43474231; // "CGB1"
+    static final int HEADER_SIZE = 2 * Integer.BYTES;
+    static final int KEY_SIZE = Long.BYTES;
+
+    private final ToLongFunction<A> keyToLong;
+    private final LongFunction<A> longToKey;
+    private final ValueCodec<B> valueCodec;
+    private final int recordSize;
+
+    public BinaryFormat(ToLongFunction<A> keyToLong, LongFunction<A> longToKey, ValueCodec<B> valueCodec) {
+        if (keyToLong == null || longToKey == null || valueCodec == null) {
+            throw new IllegalArgumentException();
+        }
+        this.keyToLong = keyToLong;
+        this.longToKey = longToKey;
+        this.valueCodec = valueCodec;
+        this.recordSize = KEY_SIZE + valueCodec.size();
+    }
+
+    /**
+     * Format for time-indexed data, where Dates are stored as epoch milliseconds
+     */
+    public static <B> BinaryFormat<Date, B> forDates(ValueCodec<B> valueCodec) {
+        return new BinaryFormat<>(Date::getTime, Date::new, valueCodec);
+    }
+
+    public int getRecordSize() {
+        return recordSize;
+    }
+
+    long encodeKey(A key) {
+        return keyToLong.applyAsLong(key);
+    }
+
+    A decodeKey(long key) {
+        return longToKey.apply(key);
+    }
+
+    B decodeValue(ByteBuffer buffer) {
+        return valueCodec.get(buffer);
+    }
+
+    @Override
+    public boolean load(File file, BiConsumer<A, B> sink) throws IOException {
+        ByteBuffer buffer = mapRecords(file, recordSize);
+
+        while (buffer.remaining() >= recordSize) {
+            A key = longToKey.apply(buffer.getLong());
+            sink.accept(key, valueCodec.get(buffer));
+        }
+
+        // A trailing partial record (interrupted write) is dropped by rewriting the file,
+        // otherwise the next appends would be misaligned
+        return buffer.hasRemaining();
+    }
+
+    /**
+     * Memory-maps a file written in this format, after checking its header
+     *
+     * @param recordSize expected size of the records
+     * @return a buffer positioned at the first record (empty if the file is empty)
+     * @throws IllegalArgumentException if the file is not in binary format or has other records
+     */
+    static ByteBuffer mapRecords(File file, int recordSize) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+
+            long size = channel.size();
+            if (size == 0) {
+                return ByteBuffer.allocate(0);
+            }
+
+            // The mapping stays valid after the channel is closed
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC) {
+                throw new IllegalArgumentException("The file is not in binary record format");
+            }
+            if (buffer.getInt() != recordSize) {
+                throw new IllegalArgumentException("The file stores records of a different type");
+            }
+            return buffer;
+        }
+    }
+
+    @Override
+    public void writeHeader(OutputStream out) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC);
+        header.putInt(recordSize);
+        out.write(header.array());
+    }
+
+    @Override
+    public void append(OutputStream out, A key, B value) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(recordSize);
+        record.putLong(keyToLong.applyAsLong(key));
+        valueCodec.put(record, value);
+        out.write(record.array());
+    }
+
+    /**
+     * Encodes values of type B on a fixed number of bytes
+     */
+    public interface ValueCodec<B> {
+
+        int size();
+
+        void put(ByteBuffer buffer, B value);
+
+        B get(ByteBuffer buffer);
+    }
+}
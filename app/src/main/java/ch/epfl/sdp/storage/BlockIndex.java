@@ -0,0 +1,84 @@
+package ch.epfl.sdp.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.function.BiConsumer;
+
+/**
+ * Sparse index over a file in BinaryFormat: for every block of BLOCK_RECORDS consecutive records,
+ * it keeps the smallest and largest key (as longs). Range scans then only decode the blocks that
+ * can hold matching records, seeking to them directly since records have a fixed width.
+ * Costs 16 bytes per block, whatever the size of the records.
+ *
+ * @param <A> The type of the keys
+ * @param <B> The type of the values
+ */
+final class BlockIndex<A, B> {
+
+    static final int BLOCK_RECORDS = 256;
+    private static final int INITIAL_BLOCKS = 16;
+
+    private final BinaryFormat<A, B> format;
+    private long[] minKeys = new long[INITIAL_BLOCKS];
+    private long[] maxKeys = new long[INITIAL_BLOCKS];
+    private int recordCount = 0;
+
+    BlockIndex(BinaryFormat<A, B> format) {
+        this.format = format;
+    }
+
+    /**
+     * Registers the next record of the file
+     */
+    void add(long key) {
+        int block = recordCount / BLOCK_RECORDS;
+        if (block == minKeys.length) {
+            minKeys = Arrays.copyOf(minKeys, 2 * block);
+            maxKeys = Arrays.copyOf(maxKeys, 2 * block);
+        }
+
+        if (recordCount % BLOCK_RECORDS == 0) {
+            minKeys[block] = key;
+            maxKeys[block] = key;
+        } else {
+            minKeys[block] = Math.min(minKeys[block], key);
+            maxKeys[block] = Math.max(maxKeys[block], key);
+        }
+        ++recordCount;
+    }
+
+    void clear() {
+        recordCount = 0;
+    }
+
+    /**
+     * Hands the records whose key ranges from 'from' (inclusive) to 'to' (exclusive) to 'sink',
+     * in file order. The indexed records must have been written to the file.
+     */
+    void scan(File file, long from, long to, BiConsumer<A, B> sink) throws IOException {
+        if (recordCount == 0 || from >= to) {
+            return;
+        }
+
+        int recordSize = format.getRecordSize();
+        ByteBuffer buffer = BinaryFormat.mapRecords(file, recordSize);
+        int first = buffer.position();
+        int count = Math.min(recordCount, buffer.remaining() / recordSize);
+
+        for (int block = 0; block * BLOCK_RECORDS < count; ++block) {
+            if (maxKeys[block] < from || to <= minKeys[block]) {
+                continue;
+            }
+            int end = Math.min(count, (block + 1) * BLOCK_RECORDS);
+            for (int i = block * BLOCK_RECORDS; i < end; ++i) {
+                buffer.position(first + i * recordSize);
+                long key = buffer.getLong();
+                if (from <= key && key < to) {
+                    sink.accept(format.decodeKey(key), format.decodeValue(buffer));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package ch.epfl.sdp.storage;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.ToLongFunction;
+
+import ch.epfl.sdp.CoronaGame;
+
+/**
+ * Base of the StorageManagers that keep their whole content in a sorted in-memory cache,
+ * asynchronously preloaded from their files. Writes issued before the end of the loading are
+ * applied once it completes.
+ * Range queries are answered by read-only views over the cache, without copying it. Like
+ * forEachInRange(), they are weakly consistent: they may or may not reflect the writes made while
+ * they are iterated. read() returns a copy, consistent at the time of the call.
+ * <p>
+ * For time-indexed data, the cache can be restricted to a hot window of recent entries (see
+ * setHotWindow()): older entries stay on disk, so that the memory used does not grow with the age
+ * of the files. Queries reaching before the hot window return a copy that merges the entries read
+ * from disk with the cache.
+ *
+ * @param <A> The type of the keys
+ * @param <B> The type of the values
+ */
+abstract class CachedManager<A extends Comparable<A>, B> implements StorageManager<A, B> {
+
+    // Views over a concurrent map remain valid while other threads write
+    protected final ConcurrentSkipListMap<A, B> cache = new ConcurrentSkipListMap<>();
+    private final AsyncLoader<A, B> loader = new AsyncLoader<>(this);
+    private volatile boolean isDeleted = false;
+    // Only with a hot window: entries whose time is below hotStart are only on disk. hotStart is
+    // only moved forward while holding this.
+    private ToLongFunction<A> keyToTime = null;
+    private long hotWindow;
+    private volatile long hotStart = Long.MIN_VALUE;
+
+    /**
+     * Only caches the entries of the last 'hotWindow' ms. Must be called by subclasses before
+     * startLoading(), which then need to implement forEachOnDisk().
+     *
+     * @param keyToTime time of the keys [ms], in the same order as the keys themselves
+     */
+    protected void setHotWindow(long hotWindow, ToLongFunction<A> keyToTime) {
+        if (hotWindow <= 0 || keyToTime == null) {
+            throw new IllegalArgumentException();
+        }
+        this.hotWindow = hotWindow;
+        this.keyToTime = keyToTime;
+    }
+
+    /**
+     * Must be called by subclasses at the end of their constructor
+     */
+    protected void startLoading() {
+        startLoading(CompletableFuture.completedFuture(null));
+    }
+
+    /**
+     * Same as startLoading(), but the loading only starts once 'after' completes (e.g. another
+     * manager whose content is imported), without blocking a thread meanwhile
+     */
+    protected void startLoading(CompletableFuture<?> after) {
+        loader.start(after, this::loadCache, this::applyWrite);
+    }
+
+    /**
+     * Fills the cache with the content of the files
+     *
+     * @return whether the files could be entirely loaded
+     */
+    protected abstract boolean loadCache();
+
+    /**
+     * Persists entries that have already been added to the cache
+     */
+    protected abstract void persist(SortedMap<A, B> payload) throws IOException;
+
+    protected abstract void deleteFiles();
+
+    /**
+     * Only with a hot window: hands the persisted entries whose keys range from 'fromKey'
+     * (inclusive) to 'toKey' (exclusive) and whose time is below 'before' to 'action', in any
+     * order. Null bounds are unbounded. Called while holding this.
+     */
+    protected void forEachOnDisk(A fromKey, A toKey, long before, BiConsumer<A, B> action) throws IOException {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * @return the time below which entries are only on disk, Long.MIN_VALUE without hot window
+     */
+    protected long hotStart() {
+        return hotStart;
+    }
+
+    /**
+     * @return whether the entry belongs in the cache
+     */
+    protected boolean isHot(A key) {
+        return keyToTime == null || keyToTime.applyAsLong(key) >= hotStart;
+    }
+
+    /**
+     * Moves the hot window to the current time and evicts the entries that left it: subclasses
+     * call it when loading and once the evicted entries are persisted. Called while holding this.
+     */
+    protected void moveHotWindow() {
+        if (keyToTime == null) {
+            return;
+        }
+        hotStart = Math.max(hotStart, CoronaGame.getClock().currentTimeMillis() - hotWindow);
+        while (!cache.isEmpty() && !isHot(cache.firstKey())) {
+            cache.pollFirstEntry();
+        }
+    }
+
+    // Queries starting within the hot window are answered by views over the cache
+    private boolean isCold(A fromKey) {
+        return keyToTime != null && (fromKey == null || keyToTime.applyAsLong(fromKey) < hotStart);
+    }
+
+    private SortedMap<A, B> cachedRange(A fromKey, A toKey) {
+        if (fromKey == null) {
+            return toKey == null ? cache : cache.headMap(toKey);
+        }
+        return toKey == null ? cache.tailMap(fromKey) : cache.subMap(fromKey, toKey);
+    }
+
+    // Entries in [fromKey, toKey) read from disk before the hot window, in key order, then those
+    // of the cache after it
+    private synchronized void forEachMerged(A fromKey, A toKey, BiConsumer<? super A, ? super B> action) {
+        SortedMap<A, B> cold = new TreeMap<>();
+        try {
+            forEachOnDisk(fromKey, toKey, hotStart, cold::put);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not read the entries older than the hot window", e);
+        }
+        cold.forEach(action);
+        cachedRange(fromKey, toKey).forEach(action);
+    }
+
+    private SortedMap<A, B> mergedRange(A fromKey, A toKey) {
+        SortedMap<A, B> result = new TreeMap<>();
+        forEachMerged(fromKey, toKey, result::put);
+        return Collections.unmodifiableSortedMap(result);
+    }
+
+    protected void checkCacheStatus() {
+        if (!isReadable()) {
+            throw new IllegalStateException("Could not perform initial cache loading");
+        }
+    }
+
+    protected void checkNotDeleted(String operation) {
+        if (isDeleted) {
+            throw new IllegalStateException("Cannot " + operation + " file after deletion");
+        }
+    }
+
+    @Override
+    public boolean write(SortedMap<A, B> payload) {
+        checkNotDeleted("write");
+        if (loader.deferWrite(payload)) {
+            return true;
+        }
+        checkCacheStatus();
+
+        return applyWrite(payload);
+    }
+
+    // Writers are serialized so that the cache and the files agree on the last value of a key,
+    // readers never lock
+    private synchronized boolean applyWrite(SortedMap<A, B> payload) {
+        cache.putAll(payload);
+        try {
+            persist(payload);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public CompletableFuture<StorageManager<A, B>> whenReady() {
+        return loader.whenReady();
+    }
+
+    @Override
+    public boolean isLoaded() {
+        return loader.isLoaded();
+    }
+
+    @Override
+    public boolean isReadable() {
+        return loader.isLoadedSuccessfully();
+    }
+
+    @Override
+    public SortedMap<A, B> read() {
+        checkNotDeleted("read");
+        checkCacheStatus();
+
+        return isCold(null) ? mergedRange(null, null) : Collections.unmodifiableSortedMap(new TreeMap<>(cache));
+    }
+
+    @Override
+    public SortedMap<A, B> filter(BiFunction<A, B, Boolean> rule) {
+        checkNotDeleted("filter on");
+        checkCacheStatus();
+
+        SortedMap<A, B> result = new TreeMap<>();
+        BiConsumer<A, B> sink = (k, v) -> {
+            if (rule.apply(k, v)) {
+                result.put(k, v);
+            }
+        };
+        if (isCold(null)) {
+            forEachMerged(null, null, sink);
+        } else {
+            cache.forEach(sink);
+        }
+
+        return Collections.unmodifiableSortedMap(result);
+    }
+
+    @Override
+    public SortedMap<A, B> headMap(A toKey) {
+        checkNotDeleted("read");
+        checkCacheStatus();
+
+        return isCold(null) ?
+                mergedRange(null, toKey) : Collections.unmodifiableSortedMap(cache.headMap(toKey));
+    }
+
+    @Override
+    public SortedMap<A, B> tailMap(A fromKey) {
+        checkNotDeleted("read");
+        checkCacheStatus();
+
+        return isCold(fromKey) ?
+                mergedRange(fromKey, null) : Collections.unmodifiableSortedMap(cache.tailMap(fromKey));
+    }
+
+    @Override
+    public SortedMap<A, B> subMap(A fromKey, A toKey) {
+        checkNotDeleted("read");
+        checkCacheStatus();
+
+        if (fromKey.compareTo(toKey) > 0) {
+            throw new IllegalArgumentException("fromKey > toKey");
+        }
+        return isCold(fromKey) ?
+                mergedRange(fromKey, toKey) : Collections.unmodifiableSortedMap(cache.subMap(fromKey, toKey));
+    }
+
+    /**
+     * Null bounds are unbounded. Before the hot window, the entries read from disk are gathered
+     * to be sorted, while those of the cache are not copied. The action is then run while holding
+     * this: it must not write.
+     */
+    @Override
+    public void forEachInRange(A fromKey, A toKey, BiConsumer<? super A, ? super B> action) {
+        checkNotDeleted("read");
+        checkCacheStatus();
+
+        if (isCold(fromKey)) {
+            forEachMerged(fromKey, toKey, action);
+        } else {
+            cachedRange(fromKey, toKey).forEach(action);
+        }
+    }
+
+    @Override
+    public void delete() {
+        try {
+            close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            deleteFiles();
+            isDeleted = true;
+        }
+    }
+}
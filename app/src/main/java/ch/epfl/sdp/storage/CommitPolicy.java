@@ -0,0 +1,58 @@
+package ch.epfl.sdp.storage;
+
+/**
+ * Tells a StorageManager when appended records must be committed to its files, and how durably.
+ * Records are buffered in memory and committed together (group commit) once enough of them are
+ * pending or once the oldest of them has waited long enough. Thresholds are only checked when
+ * writing: once writes stop, nothing is committed until StorageManager.sync() or close() is
+ * called, so owners of a manager with a delay must call them (on a timer, when shutting down).
+ */
+public final class CommitPolicy {
+
+    /**
+     * Commits every write as soon as it is issued
+     */
+    public static final CommitPolicy IMMEDIATE = new CommitPolicy(Durability.FLUSH, 1, 0);
+
+    private final Durability durability;
+    private final int maxPendingRecords;
+    private final long maxDelay;
+
+    /**
+     * @param durability        what committing means
+     * @param maxPendingRecords commit once this many records are buffered
+     * @param maxDelay          commit on the first write happening this long after the oldest
+     *                          buffered record [ms]
+     */
+    public CommitPolicy(Durability durability, int maxPendingRecords, long maxDelay) {
+        if (durability == null || maxPendingRecords <= 0 || maxDelay < 0) {
+            throw new IllegalArgumentException();
+        }
+        this.durability = durability;
+        this.maxPendingRecords = maxPendingRecords;
+        this.maxDelay = maxDelay;
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
+
+    boolean isDue(int pendingRecords, long oldestPendingAge) {
+        return pendingRecords >= maxPendingRecords || oldestPendingAge >= maxDelay;
+    }
+
+    public enum Durability {
+        /**
+         * Records stay in the process buffer until it fills up, sync() or close()
+         */
+        NONE,
+        /**
+         * Records are handed to the operating system, they survive a crash of the app
+         */
+        FLUSH,
+        /**
+         * Records are forced to the storage device, they survive a power loss
+         */
+        FSYNC
+    }
+}
@@ -1,196 +1,249 @@
 package ch.epfl.sdp.storage;
 
 import android.content.Context;
-import android.os.AsyncTask;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.util.Collections;
-import java.util.Map;
+import java.util.Collection;
 import java.util.SortedMap;
 import java.util.TreeMap;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.function.BiFunction;
+import java.util.function.BiConsumer;
 import java.util.function.Function;
 
 /**
  * Implements a StorageManager with cache (asynchronously preloaded)
+ * The layout of the backing file is given by a RecordFormat (CSV by default)
+ * <p>
+ * With a binary format whose keys are times, the cache can be restricted to a hot window of
+ * recent entries (see CachedManager): older records are found on disk through a sparse BlockIndex.
+ * The index is not persisted: it is rebuilt while the cache is loaded, in the same pass over the
+ * file, and takes 16 bytes per 256 records (64 KB for 1M records).
  *
  * @param <A> The type of the keys
  * @param <B> The type of the values
  */
-public class ConcreteManager<A extends Comparable<A>, B> implements StorageManager<A, B> {
-
-    private static final String SEPARATOR = ",";
-    private static final String LINE_END = "\n";
-    private boolean isDeleted = false;
-    private File file;
-    private FileWriter writer = null;
-    private volatile SortedMap<A, B> cache;
-    private Function<String, A> stringToA;
-    private Function<String, B> stringToB;
-    private AtomicBoolean loadingCache;
-    private AtomicBoolean cacheOk;
+public class ConcreteManager<A extends Comparable<A>, B> extends CachedManager<A, B> {
+
+    private final RecordFile<A, B> file;
+    private File legacyFile;
+    private RecordFormat<A, B> legacyFormat;
+    // Only in hot window mode
+    private BinaryFormat<A, B> indexedFormat;
+    private BlockIndex<A, B> index;
 
     public ConcreteManager(Context context, String filename, Function<String, A> convertToA, Function<String, B> convertToB) {
-        if (convertToA == null || convertToB == null) {
-            throw new IllegalArgumentException();
-        }
+        this(context, filename, new CsvFormat<>(convertToA, convertToB));
+    }
 
-        stringToA = convertToA;
-        stringToB = convertToB;
+    public ConcreteManager(Context context, String filename, RecordFormat<A, B> format) {
+        this(context, filename, format, null, null);
+    }
 
-        file = new File(context.getFilesDir(), filename);
-        if (file.isDirectory()) {
-            throw new IllegalArgumentException("Need a file and not a directory");
+    /**
+     * Opens a manager that, on first load, imports the content of a file written in another format
+     * (e.g. CSV) and then deletes it. The migration happens in one pass during the cache loading.
+     *
+     * @param legacyFilename name of the file to migrate, ignored if it does not exist
+     * @param legacyFormat   format of the file to migrate
+     */
+    public ConcreteManager(Context context, String filename, RecordFormat<A, B> format,
+                           String legacyFilename, RecordFormat<A, B> legacyFormat) {
+        if (format == null || (legacyFilename != null && legacyFormat == null)) {
+            throw new IllegalArgumentException();
         }
 
-        if (!file.exists()) {
-            try {
-                file.createNewFile();
-            } catch (IOException e) {
-                throw new IllegalArgumentException("Unable to create a new file, must select existing one");
-            }
+        this.file = new RecordFile<>(new File(context.getFilesDir(), filename), format);
+        this.legacyFormat = legacyFormat;
+        if (legacyFilename != null) {
+            legacyFile = new File(context.getFilesDir(), legacyFilename);
         }
-        if (!file.canWrite() || !file.canRead()) {
-            throw new IllegalArgumentException("Cannot read or write on the specified file");
+
+        startLoading();
+    }
+
+    /**
+     * Opens a manager that only caches the entries of the last 'hotWindow' ms
+     *
+     * @param format binary format whose keys are encoded as epoch milliseconds, in the same order
+     *               as the keys themselves (e.g. BinaryFormat.forDates())
+     */
+    public ConcreteManager(Context context, String filename, BinaryFormat<A, B> format, long hotWindow) {
+        if (format == null || hotWindow <= 0) {
+            throw new IllegalArgumentException();
         }
 
-        cache = new TreeMap<>();
+        this.file = new RecordFile<>(new File(context.getFilesDir(), filename), format);
+        this.indexedFormat = format;
+        this.index = new BlockIndex<>(format);
+        setHotWindow(hotWindow, format::encodeKey);
 
-        loadingCache = new AtomicBoolean(false);
-        cacheOk = new AtomicBoolean(false);
+        startLoading();
+    }
 
-        AsyncTask.execute(() -> {
-            boolean result = loadCache();
-            cacheOk.set(result);
-            loadingCache.set(true);
-        });
+    @Override
+    protected synchronized boolean loadCache() {
+        boolean outdated;
+        try {
+            if (index == null) {
+                outdated = file.load(cache::put);
+            } else {
+                moveHotWindow();
+                outdated = file.load(this::loadRecord);
+            }
+        } catch (Exception e) {
+            return false;
+        }
+        return migrate(outdated);
     }
 
-    private void checkCacheStatus() {
-        if (!isReadable()) {
-            throw new IllegalStateException("Could not perform initial cache loading");
+    private void loadRecord(A key, B value) {
+        index.add(indexedFormat.encodeKey(key));
+        if (isHot(key)) {
+            cache.put(key, value);
         }
     }
 
-    @Override
-    public boolean write(SortedMap<A, B> payload) {
-        if (isDeleted) {
-            throw new IllegalStateException("Cannot read file after deletion");
+    // Imports the legacy file (if any) into the current format, then removes it.
+    // Records of the file itself that use an outdated layout are converted in the same pass.
+    private boolean migrate(boolean outdated) {
+        boolean hasLegacyFile = legacyFile != null && legacyFile.exists();
+        if (!hasLegacyFile && !outdated) {
+            return true;
         }
 
-        try {
-            if (writer == null) {
-                checkCacheStatus();
-                writer = new FileWriter(file, true);
+        // In hot window mode, the cache does not hold the whole content
+        SortedMap<A, B> content = cache;
+        if (index != null) {
+            try {
+                content = loadFile();
+            } catch (Exception e) {
+                return false;
             }
+        }
 
-            for (Map.Entry<A, B> e : payload.entrySet()) {
-                // Add to cache
-                cache.put(e.getKey(), e.getValue());
-
-                writer.write(e.getKey().toString() + "," + e.getValue().toString() + LINE_END);
+        if (hasLegacyFile) {
+            SortedMap<A, B> migrated = new TreeMap<>();
+            try {
+                legacyFormat.load(legacyFile, migrated::put);
+            } catch (Exception e) {
+                // Keep whatever could be parsed: the legacy file is dropped anyway
             }
-            writer.flush();
-            return true;
+            migrated.keySet().removeAll(content.keySet());
+            content.putAll(migrated);
+        }
+
+        try {
+            file.rewrite(content);
         } catch (IOException e) {
-            writer = null;
             return false;
         }
+        if (index != null) {
+            cache.clear();
+            index.clear();
+            content.forEach(this::loadRecord);
+        }
+        if (hasLegacyFile) {
+            legacyFile.delete();
+        }
+        return true;
     }
 
-    private boolean loadCache() {
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file)))) {
+    @Override
+    protected synchronized void persist(SortedMap<A, B> payload) throws IOException {
+        file.append(payload);
 
-            String line;
-            while ((line = reader.readLine()) != null) {
-                String[] lineContent = line.split(SEPARATOR);
-                if (lineContent.length != 2) {
-                    return false;
-                }
-                A key = stringToA.apply(lineContent[0]);
-                B value = stringToB.apply(lineContent[1]);
-                cache.put(key, value);
+        if (index != null) {
+            for (A key : payload.keySet()) {
+                index.add(indexedFormat.encodeKey(key));
             }
-            return true;
-        } catch (Exception e) {
-            return false;
+            // Entries leaving the hot window are already on disk
+            moveHotWindow();
         }
     }
 
     @Override
-    public boolean isReadable() {
-        while (!loadingCache.get()) {
-        }
-
-        return cacheOk.get();
+    protected void forEachOnDisk(A fromKey, A toKey, long before, BiConsumer<A, B> action) throws IOException {
+        long from = fromKey == null ? Long.MIN_VALUE : indexedFormat.encodeKey(fromKey);
+        long to = toKey == null ? Long.MAX_VALUE : indexedFormat.encodeKey(toKey);
+        file.sync();
+        index.scan(file.getFile(), from, Math.min(to, before), action);
     }
 
-    @Override
-    public SortedMap<A, B> read() {
-        if (isDeleted) {
-            throw new IllegalStateException("Cannot read file after deletion");
-        }
+    // Whole content of the file, the last record of a key winning
+    private SortedMap<A, B> loadFile() throws IOException {
+        SortedMap<A, B> content = new TreeMap<>();
+        file.sync();
+        file.load(content::put);
+        return content;
+    }
 
+    /**
+     * Removes entries, by rewriting the file: meant for occasional removals of many entries
+     * In hot window mode, the whole file is read back for that.
+     *
+     * @return whether the file could be rewritten (the entries are removed from the cache anyway)
+     */
+    public boolean remove(Collection<? extends A> keys) {
+        checkNotDeleted("remove from");
+        // Outside of the lock: writes queued during the loading need it
         checkCacheStatus();
 
-        if (cache.isEmpty()) {
-            boolean cacheSuccess = loadCache();
-            if (!cacheSuccess) {
-                return new TreeMap<>();
+        synchronized (this) {
+            cache.keySet().removeAll(keys);
+            try {
+                SortedMap<A, B> content = cache;
+                if (index != null) {
+                    content = loadFile();
+                    content.keySet().removeAll(keys);
+                }
+                // The file is replaced atomically, never left half-written
+                file.rewrite(content);
+                if (index != null) {
+                    index.clear();
+                    for (A key : content.keySet()) {
+                        index.add(indexedFormat.encodeKey(key));
+                    }
+                }
+                return true;
+            } catch (IOException e) {
+                return false;
             }
         }
-        return Collections.unmodifiableSortedMap(new TreeMap<>(cache));
     }
 
     @Override
-    public SortedMap<A, B> filter(BiFunction<A, B, Boolean> rule) {
-        if (isDeleted) {
-            throw new IllegalStateException("Cannot filter on file after deletion");
+    protected synchronized void deleteFiles() {
+        file.delete();
+        if (index != null) {
+            index.clear();
         }
-
-        checkCacheStatus();
-
-        if (cache.isEmpty()) {
-            boolean cacheSuccess = loadCache();
-            if (!cacheSuccess) {
-                return new TreeMap<>();
-            }
+        if (legacyFile != null && legacyFile.exists()) {
+            legacyFile.delete();
         }
+    }
 
-        SortedMap<A, B> result = new TreeMap<>();
-        cache.forEach((k, v) -> {
-            if (rule.apply(k, v)) {
-                result.put(k, v);
-            }
-        });
-
-        return Collections.unmodifiableSortedMap(result);
+    /**
+     * Appends are committed immediately unless another policy is set
+     */
+    public synchronized void setCommitPolicy(CommitPolicy policy) {
+        file.setCommitPolicy(policy);
     }
 
     @Override
-    public void delete() {
-        try {
-            close();
-        } catch (IOException e) {
-            e.printStackTrace();
-        } finally {
-            if (file.exists()) {
-                file.delete();
-            }
-            isDeleted = true;
+    public void sync() throws IOException {
+        // Let the writes queued during the loading reach the file first
+        isReadable();
+        synchronized (this) {
+            file.sync();
         }
     }
 
     @Override
     public void close() throws IOException {
-        if (writer != null) {
-            writer.close();
+        // Let the writes queued during the loading reach the file first
+        isReadable();
+        synchronized (this) {
+            file.close();
         }
     }
 }
@@ -0,0 +1,72 @@
+package ch.epfl.sdp.storage;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Text format storing one "key,value" line per entry.
+ * Keys are written by a KeyCodec (toString() by default), values with toString().
+ *
+ * @param <A> The type of the keys
+ * @param <B> The type of the values
+ */
+public class CsvFormat<A, B> implements RecordFormat<A, B> {
+
+    private static final String SEPARATOR = ",";
+    private static final String LINE_END = "\n";
+
+    private final KeyCodec<A> keyCodec;
+    private final Function<String, B> stringToB;
+
+    public CsvFormat(Function<String, A> convertToA, Function<String, B> convertToB) {
+        this(convertToA == null ? null : new KeyCodec<A>() {
+            @Override
+            public String encode(A key) {
+                return key.toString();
+            }
+
+            @Override
+            public A decode(String text) {
+                return convertToA.apply(text);
+            }
+        }, convertToB);
+    }
+
+    public CsvFormat(KeyCodec<A> keyCodec, Function<String, B> convertToB) {
+        if (keyCodec == null || convertToB == null) {
+            throw new IllegalArgumentException();
+        }
+        this.keyCodec = keyCodec;
+        stringToB = convertToB;
+    }
+
+    @Override
+    public boolean load(File file, BiConsumer<A, B> sink) throws IOException {
+        boolean outdated = false;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] lineContent = line.split(SEPARATOR);
+                if (lineContent.length != 2) {
+                    throw new IllegalArgumentException("Malformed line: " + line);
+                }
+                outdated |= keyCodec.isOutdated(lineContent[0]);
+                sink.accept(keyCodec.decode(lineContent[0]), stringToB.apply(lineContent[1]));
+            }
+        }
+        return outdated;
+    }
+
+    @Override
+    public void append(OutputStream out, A key, B value) throws IOException {
+        out.write((keyCodec.encode(key) + SEPARATOR + value.toString() + LINE_END).getBytes(StandardCharsets.UTF_8));
+    }
+}
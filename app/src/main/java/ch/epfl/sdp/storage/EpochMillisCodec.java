@@ -0,0 +1,48 @@
+package ch.epfl.sdp.storage;
+
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * See KeyCodec.EPOCH_MILLIS
+ */
+final class EpochMillisCodec implements KeyCodec<Date> {
+
+    // Layout of Date.toString(). SimpleDateFormat is not thread-safe: one instance per thread
+    private static final ThreadLocal<DateFormat> LEGACY_FORMAT = ThreadLocal.withInitial(
+            () -> new SimpleDateFormat("EEE MMM dd HH:mm:ss zzz yyyy", Locale.US));
+
+    @Override
+    public String encode(Date key) {
+        return Long.toString(key.getTime());
+    }
+
+    @Override
+    public Date decode(String text) {
+        if (!isOutdated(text)) {
+            return new Date(Long.parseLong(text));
+        }
+        try {
+            return LEGACY_FORMAT.get().parse(text);
+        } catch (ParseException e) {
+            throw new IllegalArgumentException("Invalid date: " + text);
+        }
+    }
+
+    @Override
+    public boolean isOutdated(String text) {
+        int start = text.startsWith("-") ? 1 : 0;
+        if (text.length() == start) {
+            return true;
+        }
+        for (int i = start; i < text.length(); ++i) {
+            if (!Character.isDigit(text.charAt(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,339 @@
+package ch.epfl.sdp.storage;
+
+import android.content.Context;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiFunction;
+
+/**
+ * StorageManager specialised for series of floats indexed by time (e.g. probability histories).
+ * Samples are kept in two parallel primitive arrays (timestamps and values), sorted by time and
+ * searched with binary search, which costs 12 bytes per sample instead of a boxed TreeMap entry.
+ * Maps returned by the range queries are read-only views over a snapshot of the arrays: Date and
+ * Float objects are only created while iterating. As an existing timestamp is overwritten in
+ * place, they may reflect later writes of the values. read() returns a copy of the arrays.
+ * The backing file uses the binary record format of BinaryFormat.forDates(FLOAT_VALUES).
+ */
+public class FloatTimeSeries implements StorageManager<Date, Float> {
+
+    private static final int INITIAL_CAPACITY = 64;
+    private static final BinaryFormat<Date, Float> FORMAT = BinaryFormat.forDates(BinaryFormat.FLOAT_VALUES);
+
+    private final RecordFile<Date, Float> file;
+    private final AsyncLoader<Date, Float> loader = new AsyncLoader<>(this);
+    private File legacyFile;
+    private RecordFormat<Date, Float> legacyFormat;
+    private volatile boolean isDeleted = false;
+    // Published atomically: samples below snapshot.size are never modified in place,
+    // except for the value of an already existing timestamp
+    private volatile Snapshot snapshot = new Snapshot(new long[INITIAL_CAPACITY], new float[INITIAL_CAPACITY], 0);
+
+    public FloatTimeSeries(Context context, String filename) {
+        this(context, filename, null, null);
+    }
+
+    /**
+     * @param legacyFilename name of a file written in another format, imported on first load and
+     *                       then deleted (ignored if it does not exist)
+     * @param legacyFormat   format of the file to migrate
+     */
+    public FloatTimeSeries(Context context, String filename, String legacyFilename, RecordFormat<Date, Float> legacyFormat) {
+        if (legacyFilename != null && legacyFormat == null) {
+            throw new IllegalArgumentException();
+        }
+
+        this.file = new RecordFile<>(new File(context.getFilesDir(), filename), FORMAT);
+        this.legacyFormat = legacyFormat;
+        if (legacyFilename != null) {
+            legacyFile = new File(context.getFilesDir(), legacyFilename);
+        }
+
+        loader.start(CompletableFuture.completedFuture(null), this::loadCache, this::applyWrite);
+    }
+
+    private synchronized boolean loadCache() {
+        boolean outdated;
+        try {
+            ByteBuffer buffer = BinaryFormat.mapRecords(file.getFile(), FORMAT.getRecordSize());
+            int count = buffer.remaining() / FORMAT.getRecordSize();
+            long[] times = new long[Math.max(INITIAL_CAPACITY, count)];
+            float[] values = new float[times.length];
+
+            boolean sorted = true;
+            for (int i = 0; i < count; ++i) {
+                times[i] = buffer.getLong();
+                values[i] = buffer.getFloat();
+                sorted &= i == 0 || times[i - 1] < times[i];
+            }
+
+            snapshot = sorted ? new Snapshot(times, values, count) : sortedSnapshot(times, values, count);
+            // Trailing partial record (interrupted write)
+            outdated = buffer.hasRemaining();
+        } catch (Exception e) {
+            return false;
+        }
+        return migrate(outdated);
+    }
+
+    // Samples written out of order or overwritten: the last record for a timestamp wins
+    private static Snapshot sortedSnapshot(long[] times, float[] values, int count) {
+        TreeMap<Long, Float> samples = new TreeMap<>();
+        for (int i = 0; i < count; ++i) {
+            samples.put(times[i], values[i]);
+        }
+
+        long[] sortedTimes = new long[times.length];
+        float[] sortedValues = new float[times.length];
+        int i = 0;
+        for (Map.Entry<Long, Float> e : samples.entrySet()) {
+            sortedTimes[i] = e.getKey();
+            sortedValues[i] = e.getValue();
+            ++i;
+        }
+        return new Snapshot(sortedTimes, sortedValues, samples.size());
+    }
+
+    private boolean migrate(boolean outdated) {
+        boolean hasLegacyFile = legacyFile != null && legacyFile.exists();
+        if (!hasLegacyFile && !outdated) {
+            return true;
+        }
+
+        if (hasLegacyFile) {
+            try {
+                legacyFormat.load(legacyFile, (date, value) -> {
+                    if (snapshot.indexOf(date.getTime()) < 0) {
+                        insert(date.getTime(), value);
+                    }
+                });
+            } catch (Exception e) {
+                // Keep whatever could be parsed: the legacy file is dropped anyway
+            }
+        }
+
+        try {
+            file.rewrite(snapshot.view(0, snapshot.size));
+        } catch (IOException e) {
+            return false;
+        }
+        if (hasLegacyFile) {
+            legacyFile.delete();
+        }
+        return true;
+    }
+
+    private void insert(long time, float value) {
+        Snapshot current = snapshot;
+        long[] times = current.times;
+        float[] values = current.values;
+        int size = current.size;
+
+        int index = current.indexOf(time);
+        if (index >= 0) {
+            values[index] = value;
+            return;
+        }
+
+        int insertion = -index - 1;
+        if (insertion == size && size < times.length) {
+            // Common case: append after the last sample, invisible to existing snapshots
+            times[size] = time;
+            values[size] = value;
+        } else {
+            // Growth or out-of-order insertion: copy so that existing snapshots stay untouched
+            int capacity = size < times.length ? times.length : 2 * times.length;
+            long[] newTimes = new long[capacity];
+            float[] newValues = new float[capacity];
+            System.arraycopy(times, 0, newTimes, 0, insertion);
+            System.arraycopy(values, 0, newValues, 0, insertion);
+            newTimes[insertion] = time;
+            newValues[insertion] = value;
+            System.arraycopy(times, insertion, newTimes, insertion + 1, size - insertion);
+            System.arraycopy(values, insertion, newValues, insertion + 1, size - insertion);
+            times = newTimes;
+            values = newValues;
+        }
+        snapshot = new Snapshot(times, values, size + 1);
+    }
+
+    private void checkCacheStatus() {
+        if (!isReadable()) {
+            throw new IllegalStateException("Could not perform initial cache loading");
+        }
+    }
+
+    private void checkNotDeleted(String operation) {
+        if (isDeleted) {
+            throw new IllegalStateException("Cannot " + operation + " file after deletion");
+        }
+    }
+
+    @Override
+    public boolean write(SortedMap<Date, Float> payload) {
+        checkNotDeleted("write");
+        if (loader.deferWrite(payload)) {
+            return true;
+        }
+        checkCacheStatus();
+
+        return applyWrite(payload);
+    }
+
+    private synchronized boolean applyWrite(SortedMap<Date, Float> payload) {
+        for (Map.Entry<Date, Float> e : payload.entrySet()) {
+            insert(e.getKey().getTime(), e.getValue());
+        }
+        try {
+            file.append(payload);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public SortedMap<Date, Float> read() {
+        Snapshot current = currentSnapshot();
+        return new SeriesView(Arrays.copyOf(current.times, current.size),
+                Arrays.copyOf(current.values, current.size), 0, current.size);
+    }
+
+    private Snapshot currentSnapshot() {
+        checkNotDeleted("read");
+        checkCacheStatus();
+
+        return snapshot;
+    }
+
+    @Override
+    public SortedMap<Date, Float> filter(BiFunction<Date, Float, Boolean> rule) {
+        checkNotDeleted("filter on");
+        checkCacheStatus();
+
+        Snapshot current = snapshot;
+        SortedMap<Date, Float> result = new TreeMap<>();
+        for (int i = 0; i < current.size; ++i) {
+            Date date = new Date(current.times[i]);
+            if (rule.apply(date, current.values[i])) {
+                result.put(date, current.values[i]);
+            }
+        }
+        return Collections.unmodifiableSortedMap(result);
+    }
+
+    @Override
+    public SortedMap<Date, Float> headMap(Date toKey) {
+        Snapshot current = currentSnapshot();
+        return current.view(0, current.size).headMap(toKey);
+    }
+
+    @Override
+    public SortedMap<Date, Float> tailMap(Date fromKey) {
+        Snapshot current = currentSnapshot();
+        return current.view(0, current.size).tailMap(fromKey);
+    }
+
+    @Override
+    public SortedMap<Date, Float> subMap(Date fromKey, Date toKey) {
+        Snapshot current = currentSnapshot();
+        return current.view(0, current.size).subMap(fromKey, toKey);
+    }
+
+    @Override
+    public CompletableFuture<StorageManager<Date, Float>> whenReady() {
+        return loader.whenReady();
+    }
+
+    @Override
+    public boolean isReadable() {
+        return loader.isLoadedSuccessfully();
+    }
+
+    /**
+     * Appends are committed immediately unless another policy is set
+     */
+    public synchronized void setCommitPolicy(CommitPolicy policy) {
+        file.setCommitPolicy(policy);
+    }
+
+    @Override
+    public void sync() throws IOException {
+        // Let the writes queued during the loading reach the file first
+        isReadable();
+        synchronized (this) {
+            file.sync();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        // Let the writes queued during the loading reach the file first
+        isReadable();
+        synchronized (this) {
+            file.close();
+        }
+    }
+
+    @Override
+    public synchronized void delete() {
+        file.delete();
+        if (legacyFile != null && legacyFile.exists()) {
+            legacyFile.delete();
+        }
+        isDeleted = true;
+    }
+
+    /**
+     * Immutable state of the series: the first 'size' samples of the arrays
+     */
+    private static final class Snapshot {
+        private final long[] times;
+        private final float[] values;
+        private final int size;
+
+        private Snapshot(long[] times, float[] values, int size) {
+            this.times = times;
+            this.values = values;
+            this.size = size;
+        }
+
+        private int indexOf(long time) {
+            return Arrays.binarySearch(times, 0, size, time);
+        }
+
+        private SeriesView view(int from, int to) {
+            return new SeriesView(times, values, from, to);
+        }
+    }
+
+    /**
+     * Read-only SortedMap over the samples [from, to) of the arrays
+     */
+    private static final class SeriesView extends TimeSeriesView<Float> {
+        private final float[] values;
+
+        private SeriesView(long[] times, float[] values, int from, int to) {
+            super(times, from, to);
+            this.values = values;
+        }
+
+        @Override
+        protected Float valueAt(int index) {
+            return values[index];
+        }
+
+        @Override
+        protected SeriesView range(int from, int to) {
+            return new SeriesView(times, values, from, to);
+        }
+    }
+}
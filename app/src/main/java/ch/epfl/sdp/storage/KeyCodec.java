@@ -0,0 +1,31 @@
+package ch.epfl.sdp.storage;
+
+import java.util.Date;
+
+/**
+ * Converts the keys of a text RecordFormat to and from their stored representation
+ *
+ * @param <A> The type of the keys
+ */
+public interface KeyCodec<A> {
+
+    /**
+     * Dates stored as milliseconds since the epoch. Dates written with Date.toString() by
+     * previous versions are still decoded, and reported as outdated.
+     */
+    KeyCodec<Date> EPOCH_MILLIS = new EpochMillisCodec();
+
+    String encode(A key);
+
+    /**
+     * @throws IllegalArgumentException if 'text' is not a valid key
+     */
+    A decode(String text);
+
+    /**
+     * @return whether 'text' uses a representation that encode() no longer produces
+     */
+    default boolean isOutdated(String text) {
+        return false;
+    }
+}
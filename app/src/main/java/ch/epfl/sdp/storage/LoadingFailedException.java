@@ -0,0 +1,47 @@
+package ch.epfl.sdp.storage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Completes StorageManager.whenReady() exceptionally when the content could not be loaded.
+ * The writes accepted while loading could not be applied: they are handed back, so that they can
+ * be replayed on the manager that replaces the unreadable one.
+ */
+public class LoadingFailedException extends IllegalStateException {
+
+    private final List<SortedMap<?, ?>> droppedWrites;
+
+    LoadingFailedException(List<? extends SortedMap<?, ?>> droppedWrites) {
+        super("Could not perform initial cache loading, " + droppedWrites.size() + " queued write(s) dropped");
+        this.droppedWrites = Collections.unmodifiableList(new ArrayList<>(droppedWrites));
+    }
+
+    /**
+     * @return the payloads of the writes accepted while loading, in the order they were issued
+     */
+    public List<SortedMap<?, ?>> getDroppedWrites() {
+        return droppedWrites;
+    }
+
+    /**
+     * Writes the payloads dropped by a failed loading to 'manager', if 'failure' (or its cause)
+     * reports one. 'manager' must have the same types of keys and values as the failed one.
+     *
+     * @return whether 'failure' reported a failed loading
+     */
+    @SuppressWarnings("unchecked")
+    public static <A extends Comparable<A>, B> boolean replayDroppedWrites(Throwable failure, StorageManager<A, B> manager) {
+        Throwable cause = failure instanceof CompletionException ? failure.getCause() : failure;
+        if (!(cause instanceof LoadingFailedException)) {
+            return false;
+        }
+        for (SortedMap<?, ?> payload : ((LoadingFailedException) cause).droppedWrites) {
+            manager.write((SortedMap<A, B>) payload);
+        }
+        return true;
+    }
+}
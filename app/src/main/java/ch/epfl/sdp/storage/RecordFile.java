@@ -0,0 +1,190 @@
+package ch.epfl.sdp.storage;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+import ch.epfl.sdp.CoronaGame;
+
+/**
+ * Append-only file of records laid out according to a RecordFormat.
+ * Appends are committed according to a CommitPolicy, immediately by default.
+ *
+ * @param <A> The type of the keys
+ * @param <B> The type of the values
+ */
+class RecordFile<A, B> {
+
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private final File file;
+    private final RecordFormat<A, B> format;
+    private CommitPolicy policy = CommitPolicy.IMMEDIATE;
+    private FileOutputStream stream = null;
+    private OutputStream writer = null;
+    private int pendingRecords = 0;
+    private long oldestPendingTime;
+
+    RecordFile(File file, RecordFormat<A, B> format) {
+        if (file.isDirectory()) {
+            throw new IllegalArgumentException("Need a file and not a directory");
+        }
+
+        if (!file.exists()) {
+            try {
+                file.createNewFile();
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Unable to create a new file, must select existing one");
+            }
+        }
+        if (!file.canWrite() || !file.canRead()) {
+            throw new IllegalArgumentException("Cannot read or write on the specified file");
+        }
+
+        this.file = file;
+        this.format = format;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    void setCommitPolicy(CommitPolicy policy) {
+        if (policy == null) {
+            throw new IllegalArgumentException();
+        }
+        this.policy = policy;
+    }
+
+    /**
+     * @return whether the file should be rewritten, see RecordFormat.load()
+     */
+    boolean load(BiConsumer<A, B> sink) throws IOException {
+        return format.load(file, sink);
+    }
+
+    void append(Map<A, B> payload) throws IOException {
+        try {
+            if (writer == null) {
+                boolean isEmpty = file.length() == 0;
+                stream = new FileOutputStream(file, true);
+                writer = new BufferedOutputStream(stream);
+                if (isEmpty) {
+                    format.writeHeader(writer);
+                }
+            }
+
+            for (Map.Entry<A, B> e : payload.entrySet()) {
+                format.append(writer, e.getKey(), e.getValue());
+            }
+
+            long now = CoronaGame.getClock().currentTimeMillis();
+            if (pendingRecords == 0) {
+                oldestPendingTime = now;
+            }
+            pendingRecords += payload.size();
+            if (policy.isDue(pendingRecords, now - oldestPendingTime)) {
+                commit(policy.getDurability());
+            }
+        } catch (IOException e) {
+            discardWriter();
+            throw e;
+        }
+    }
+
+    // After a failed write the buffered records are lost anyway: releases the descriptor without
+    // flushing them, and without hiding the original failure
+    private void discardWriter() {
+        try {
+            if (stream != null) {
+                stream.close();
+            }
+        } catch (IOException ignore) {
+        }
+        writer = null;
+        stream = null;
+        pendingRecords = 0;
+    }
+
+    private void commit(CommitPolicy.Durability durability) throws IOException {
+        switch (durability) {
+            case FSYNC:
+                writer.flush();
+                stream.getFD().sync();
+                break;
+            case FLUSH:
+                writer.flush();
+                break;
+            case NONE:
+                break;
+        }
+        pendingRecords = 0;
+    }
+
+    /**
+     * Commits the buffered records, at least flushing them whatever the durability of the policy
+     */
+    void sync() throws IOException {
+        if (writer != null) {
+            try {
+                commit(policy.getDurability() == CommitPolicy.Durability.FSYNC ?
+                        CommitPolicy.Durability.FSYNC : CommitPolicy.Durability.FLUSH);
+            } catch (IOException e) {
+                discardWriter();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Atomically replaces the whole content of the file
+     */
+    void rewrite(Map<A, B> content) throws IOException {
+        close();
+
+        File tmp = new File(file.getPath() + TMP_SUFFIX);
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp))) {
+            format.writeHeader(out);
+            for (Map.Entry<A, B> e : content.entrySet()) {
+                format.append(out, e.getKey(), e.getValue());
+            }
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        }
+
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Unable to replace " + file.getName());
+        }
+    }
+
+    void close() throws IOException {
+        if (writer != null) {
+            // Releases the descriptor itself if it fails
+            sync();
+
+            OutputStream toClose = writer;
+            writer = null;
+            stream = null;
+            pendingRecords = 0;
+            toClose.close();
+        }
+    }
+
+    void delete() {
+        try {
+            close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (file.exists()) {
+                file.delete();
+            }
+        }
+    }
+}
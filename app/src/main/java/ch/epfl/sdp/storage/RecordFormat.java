@@ -0,0 +1,44 @@
+package ch.epfl.sdp.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.function.BiConsumer;
+
+/**
+ * Describes how the entries of a StorageManager are laid out in its backing file
+ *
+ * @param <A> The type of the keys
+ * @param <B> The type of the values
+ */
+public interface RecordFormat<A, B> {
+
+    /**
+     * Reads every record stored in 'file' and hands it to 'sink', in file order
+     *
+     * @param file the file to scan
+     * @param sink receives each (key, value) pair
+     * @return whether some records use an outdated layout, in which case the file should be
+     * rewritten
+     * @throws IOException              if the file cannot be read
+     * @throws IllegalArgumentException if the content of the file does not match the format
+     */
+    boolean load(File file, BiConsumer<A, B> sink) throws IOException;
+
+    /**
+     * Called once on an empty file, before the first record is appended
+     *
+     * @param out stream positioned at the beginning of the file
+     */
+    default void writeHeader(OutputStream out) throws IOException {
+    }
+
+    /**
+     * Appends a single record
+     *
+     * @param out   stream positioned at the end of the file
+     * @param key
+     * @param value
+     */
+    void append(OutputStream out, A key, B value) throws IOException;
+}
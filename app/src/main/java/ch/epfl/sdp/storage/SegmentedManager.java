@@ -0,0 +1,278 @@
+package ch.epfl.sdp.storage;
+
+import android.content.Context;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+import java.util.function.ToLongFunction;
+
+import ch.epfl.sdp.CoronaGame;
+
+/**
+ * StorageManager for time-indexed data, split into rolling segment files
+ * (one file per 'segmentLength' ms, stored in a dedicated directory).
+ * Segments entirely older than the retention period are deleted as a whole, without being loaded,
+ * and their entries are evicted from the cache.
+ * <p>
+ * With a hot window, the segments entirely older than it are not loaded either: queries reaching
+ * them read their files, the start times of the segments serving as a persisted index.
+ *
+ * @param <A> The type of the keys
+ * @param <B> The type of the values
+ */
+public class SegmentedManager<A extends Comparable<A>, B> extends CachedManager<A, B> {
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    private final File directory;
+    private final RecordFormat<A, B> format;
+    private final ToLongFunction<A> keyToTime;
+    private final long segmentLength;
+    private final long retention;
+    // Segments indexed by the time at which they start
+    private final TreeMap<Long, RecordFile<A, B>> segments;
+    private final StorageManager<A, B> legacy;
+    private CommitPolicy policy = CommitPolicy.IMMEDIATE;
+
+    public SegmentedManager(Context context, String directoryName, RecordFormat<A, B> format,
+                            ToLongFunction<A> keyToTime, long segmentLength, long retention) {
+        this(context, directoryName, format, keyToTime, segmentLength, retention, null);
+    }
+
+    /**
+     * @param segmentLength time span covered by a segment [ms]
+     * @param retention     entries older than this (compared to now) may be dropped [ms]
+     * @param legacy        single-file manager whose content is imported into segments and then
+     *                      deleted, can be null
+     */
+    public SegmentedManager(Context context, String directoryName, RecordFormat<A, B> format,
+                            ToLongFunction<A> keyToTime, long segmentLength, long retention,
+                            StorageManager<A, B> legacy) {
+        this(context, directoryName, format, keyToTime, segmentLength, retention, legacy, 0);
+    }
+
+    /**
+     * @param hotWindow only the entries of the last 'hotWindow' ms are cached, all of them if 0
+     */
+    public SegmentedManager(Context context, String directoryName, RecordFormat<A, B> format,
+                            ToLongFunction<A> keyToTime, long segmentLength, long retention,
+                            StorageManager<A, B> legacy, long hotWindow) {
+        if (format == null || keyToTime == null || hotWindow < 0) {
+            throw new IllegalArgumentException();
+        }
+        if (segmentLength <= 0 || retention <= 0) {
+            throw new IllegalArgumentException("Segment length and retention must be positive");
+        }
+
+        this.format = format;
+        this.keyToTime = keyToTime;
+        this.segmentLength = segmentLength;
+        this.retention = retention;
+        this.segments = new TreeMap<>();
+        this.legacy = legacy;
+
+        directory = new File(context.getFilesDir(), directoryName);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalArgumentException("Unable to create the segments directory");
+        }
+
+        openSegments();
+
+        if (hotWindow > 0) {
+            setHotWindow(hotWindow, keyToTime);
+        }
+        // The legacy content is imported once loaded, no thread waits for it meanwhile
+        startLoading(legacy == null ? CompletableFuture.completedFuture(null) : legacy.whenReady());
+    }
+
+    private long segmentStart(long time) {
+        return time - Math.floorMod(time, segmentLength);
+    }
+
+    // Segments starting before this time only contain expired entries
+    private long oldestLiveSegment() {
+        return segmentStart(CoronaGame.getClock().currentTimeMillis() - retention);
+    }
+
+    private void openSegments() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        long oldestLive = oldestLiveSegment();
+        for (File f : files) {
+            String name = f.getName();
+            if (!name.endsWith(SEGMENT_SUFFIX)) {
+                continue;
+            }
+            try {
+                long start = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+                if (start < oldestLive) {
+                    // Expired segments are never loaded
+                    f.delete();
+                } else {
+                    segments.put(start, openSegment(start));
+                }
+            } catch (NumberFormatException ignore) {
+            }
+        }
+    }
+
+    private RecordFile<A, B> openSegment(long start) {
+        RecordFile<A, B> segment = new RecordFile<>(new File(directory, start + SEGMENT_SUFFIX), format);
+        segment.setCommitPolicy(policy);
+        return segment;
+    }
+
+    /**
+     * Appends are committed immediately unless another policy is set. The policy applies to each
+     * segment separately.
+     */
+    public synchronized void setCommitPolicy(CommitPolicy policy) {
+        if (policy == null) {
+            throw new IllegalArgumentException();
+        }
+        for (RecordFile<A, B> segment : segments.values()) {
+            segment.setCommitPolicy(policy);
+        }
+        this.policy = policy;
+    }
+
+    private void dropExpiredSegments() {
+        long oldestLive = oldestLiveSegment();
+
+        SortedMap<Long, RecordFile<A, B>> expired = segments.headMap(oldestLive);
+        for (RecordFile<A, B> segment : expired.values()) {
+            segment.delete();
+        }
+        expired.clear();
+
+        while (!cache.isEmpty() && keyToTime.applyAsLong(cache.firstKey()) < oldestLive) {
+            cache.pollFirstEntry();
+        }
+    }
+
+    @Override
+    protected synchronized boolean loadCache() {
+        moveHotWindow();
+        try {
+            for (Map.Entry<Long, RecordFile<A, B>> e : segments.entrySet()) {
+                // Entirely before the hot window
+                if (e.getKey() + segmentLength <= hotStart()) {
+                    continue;
+                }
+                RecordFile<A, B> segment = e.getValue();
+                SortedMap<A, B> content = new TreeMap<>();
+                if (segment.load(content::put)) {
+                    segment.rewrite(content);
+                }
+                cache.putAll(content);
+            }
+        } catch (Exception e) {
+            return false;
+        }
+        moveHotWindow();
+
+        if (legacy != null) {
+            try {
+                // Loaded before this manager started loading: does not block
+                if (legacy.isReadable()) {
+                    SortedMap<A, B> imported = new TreeMap<>(legacy.read());
+                    imported.keySet().removeAll(cache.keySet());
+                    cache.putAll(imported);
+                    persist(imported);
+                }
+            } catch (IOException e) {
+                return false;
+            } finally {
+                legacy.delete();
+            }
+        }
+        return true;
+    }
+
+    @Override
+    protected synchronized void persist(SortedMap<A, B> payload) throws IOException {
+        dropExpiredSegments();
+        long oldestLive = oldestLiveSegment();
+
+        // Split the payload according to the segment of each entry
+        Map<Long, SortedMap<A, B>> perSegment = new TreeMap<>();
+        for (Map.Entry<A, B> e : payload.entrySet()) {
+            long start = segmentStart(keyToTime.applyAsLong(e.getKey()));
+            if (start >= oldestLive) {
+                perSegment.computeIfAbsent(start, s -> new TreeMap<>()).put(e.getKey(), e.getValue());
+            }
+        }
+
+        for (Map.Entry<Long, SortedMap<A, B>> e : perSegment.entrySet()) {
+            segments.computeIfAbsent(e.getKey(), this::openSegment).append(e.getValue());
+        }
+        // Entries leaving the hot window are already on disk
+        moveHotWindow();
+    }
+
+    @Override
+    protected void forEachOnDisk(A fromKey, A toKey, long before, BiConsumer<A, B> action) throws IOException {
+        long from = fromKey == null ? Long.MIN_VALUE : keyToTime.applyAsLong(fromKey);
+        long to = Math.min(before, toKey == null ? Long.MAX_VALUE : keyToTime.applyAsLong(toKey));
+        for (Map.Entry<Long, RecordFile<A, B>> e : segments.entrySet()) {
+            long start = e.getKey();
+            if (start >= to || start + segmentLength <= from) {
+                continue;
+            }
+            RecordFile<A, B> segment = e.getValue();
+            segment.sync();
+            segment.load((key, value) -> {
+                if ((fromKey == null || key.compareTo(fromKey) >= 0) &&
+                        (toKey == null || key.compareTo(toKey) < 0) && keyToTime.applyAsLong(key) < before) {
+                    action.accept(key, value);
+                }
+            });
+        }
+    }
+
+    @Override
+    protected synchronized void deleteFiles() {
+        for (RecordFile<A, B> segment : segments.values()) {
+            segment.delete();
+        }
+        segments.clear();
+
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Override
+    public void sync() throws IOException {
+        // Let the writes queued during the loading reach the files first
+        isReadable();
+        synchronized (this) {
+            for (RecordFile<A, B> segment : segments.values()) {
+                segment.sync();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        // Let the writes queued during the loading reach the files first
+        isReadable();
+        synchronized (this) {
+            for (RecordFile<A, B> segment : segments.values()) {
+                segment.close();
+            }
+        }
+    }
+}
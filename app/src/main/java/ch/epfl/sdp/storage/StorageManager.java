@@ -2,22 +2,89 @@ package ch.epfl.sdp.storage;
 
 import java.io.IOException;
 import java.util.SortedMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
 import java.util.function.BiFunction;
 
 /**
  * Abstraction for component that stores and retrieve key-value pairs
  * from a file located in internal storage
+ * Implementations are thread-safe: reads do not lock and are not blocked by writes.
+ * Until the content is loaded, reads block the calling thread: chain them to whenReady(), or check
+ * isLoaded() first, not to block.
  */
 public interface StorageManager<A extends Comparable<A>, B> {
 
     boolean write(SortedMap<A, B> payload);
 
+    /**
+     * @return a read-only copy of the whole content
+     */
     SortedMap<A, B> read();
 
     SortedMap<A, B> filter(BiFunction<A, B, Boolean> rule);
 
+    /**
+     * @return a read-only view of the entries whose keys are strictly less than 'toKey'
+     */
+    SortedMap<A, B> headMap(A toKey);
+
+    /**
+     * @return a read-only view of the entries whose keys are greater than or equal to 'fromKey'
+     */
+    SortedMap<A, B> tailMap(A fromKey);
+
+    /**
+     * @return a read-only view of the entries whose keys range from 'fromKey' (inclusive)
+     * to 'toKey' (exclusive)
+     */
+    SortedMap<A, B> subMap(A fromKey, A toKey);
+
+    /**
+     * Passes the entries whose keys range from 'fromKey' (inclusive) to 'toKey' (exclusive) to
+     * 'action', in key order, without copying them first. A null bound leaves the range open on
+     * that side. As the views returned by the range queries, it may or may not see the writes made
+     * meanwhile, unless the implementation states otherwise.
+     */
+    default void forEachInRange(A fromKey, A toKey, BiConsumer<? super A, ? super B> action) {
+        SortedMap<A, B> range;
+        if (fromKey == null) {
+            range = toKey == null ? read() : headMap(toKey);
+        } else {
+            range = toKey == null ? tailMap(fromKey) : subMap(fromKey, toKey);
+        }
+        range.forEach(action);
+    }
+
+    /**
+     * Completes with this manager once its content is loaded, or exceptionally if it could not be,
+     * with a LoadingFailedException that hands back the writes accepted meanwhile.
+     * Reads can be chained to it without blocking the calling thread.
+     */
+    CompletableFuture<StorageManager<A, B>> whenReady();
+
+    /**
+     * Does not block
+     *
+     * @return whether the content is loaded, false while it is loading or if it could not be
+     */
+    default boolean isLoaded() {
+        CompletableFuture<StorageManager<A, B>> ready = whenReady();
+        return ready.isDone() && !ready.isCompletedExceptionally();
+    }
+
+    /**
+     * Blocks until the content is loaded
+     *
+     * @return whether the content could be loaded
+     */
     boolean isReadable();
 
+    /**
+     * Commits the writes that the CommitPolicy of the manager kept buffered
+     */
+    void sync() throws IOException;
+
     void close() throws IOException;
 
     void delete();
@@ -0,0 +1,148 @@
+package ch.epfl.sdp.storage;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.function.BiConsumer;
+
+/**
+ * Read-only SortedMap over the samples [from, to) of a time series kept in parallel primitive
+ * arrays: the sorted timestamps, and the values in arrays of the subclass. Samples are found by
+ * binary search, and Date and value objects are only created while accessing them.
+ * The arrays must not be modified while the view is in use.
+ *
+ * @param <V> The type of the values
+ */
+public abstract class TimeSeriesView<V> extends AbstractMap<Date, V> implements SortedMap<Date, V> {
+
+    protected final long[] times;
+    protected final int from;
+    protected final int to;
+
+    protected TimeSeriesView(long[] times, int from, int to) {
+        this.times = times;
+        this.from = from;
+        this.to = to;
+    }
+
+    /**
+     * @return the value of the sample at 'index' in the arrays
+     */
+    protected abstract V valueAt(int index);
+
+    /**
+     * @return a view over the samples [from, to) of the same arrays
+     */
+    protected abstract TimeSeriesView<V> range(int from, int to);
+
+    // Index of the first sample at or after 'time', within the view
+    private int lowerBound(long time) {
+        int index = Arrays.binarySearch(times, from, to, time);
+        return index >= 0 ? index : -index - 1;
+    }
+
+    private int indexOf(Object key) {
+        return key instanceof Date ? Arrays.binarySearch(times, from, to, ((Date) key).getTime()) : -1;
+    }
+
+    @Override
+    public int size() {
+        return to - from;
+    }
+
+    @Override
+    public V get(Object key) {
+        int index = indexOf(key);
+        return index >= 0 ? valueAt(index) : null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return indexOf(key) >= 0;
+    }
+
+    @Override
+    public Comparator<? super Date> comparator() {
+        return null;
+    }
+
+    @Override
+    public SortedMap<Date, V> subMap(Date fromKey, Date toKey) {
+        if (fromKey.compareTo(toKey) > 0) {
+            throw new IllegalArgumentException("fromKey > toKey");
+        }
+        return range(lowerBound(fromKey.getTime()), lowerBound(toKey.getTime()));
+    }
+
+    @Override
+    public SortedMap<Date, V> headMap(Date toKey) {
+        return range(from, lowerBound(toKey.getTime()));
+    }
+
+    @Override
+    public SortedMap<Date, V> tailMap(Date fromKey) {
+        return range(lowerBound(fromKey.getTime()), to);
+    }
+
+    @Override
+    public Date firstKey() {
+        if (from == to) {
+            throw new NoSuchElementException();
+        }
+        return new Date(times[from]);
+    }
+
+    @Override
+    public Date lastKey() {
+        if (from == to) {
+            throw new NoSuchElementException();
+        }
+        return new Date(times[to - 1]);
+    }
+
+    // Iterates the arrays directly instead of allocating an entry per sample
+    @Override
+    public void forEach(BiConsumer<? super Date, ? super V> action) {
+        for (int i = from; i < to; ++i) {
+            action.accept(new Date(times[i]), valueAt(i));
+        }
+    }
+
+    @Override
+    public Set<Entry<Date, V>> entrySet() {
+        return new AbstractSet<Entry<Date, V>>() {
+            @Override
+            public Iterator<Entry<Date, V>> iterator() {
+                return new Iterator<Entry<Date, V>>() {
+                    private int next = from;
+
+                    @Override
+                    public boolean hasNext() {
+                        return next < to;
+                    }
+
+                    @Override
+                    public Entry<Date, V> next() {
+                        if (next >= to) {
+                            throw new NoSuchElementException();
+                        }
+                        Entry<Date, V> entry = new SimpleImmutableEntry<>(new Date(times[next]), valueAt(next));
+                        ++next;
+                        return entry;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return to - from;
+            }
+        };
+    }
+}
@@ -0,0 +1,42 @@
+package ch.epfl.sdp.utilities;
+
+import java.util.Date;
+
+/**
+ * Source of the current time and scheduler of delayed tasks. Components read the time and
+ * schedule their periodic work through a Clock instead of the system, so that they can be run on
+ * virtual time (see VirtualClock).
+ */
+public interface Clock {
+
+    /**
+     * The system time, tasks are run on a shared background thread
+     */
+    Clock SYSTEM = new WallClock();
+
+    /**
+     * @return the current time [ms since epoch]
+     */
+    long currentTimeMillis();
+
+    default Date now() {
+        return new Date(currentTimeMillis());
+    }
+
+    /**
+     * Runs 'task' once, 'delay' ms from now
+     */
+    Cancellable schedule(Runnable task, long delay);
+
+    /**
+     * Runs 'task' every 'period' ms, starting 'initialDelay' ms from now
+     */
+    Cancellable scheduleAtFixedRate(Runnable task, long initialDelay, long period);
+
+    interface Cancellable {
+        /**
+         * Prevents the next executions of the task, without interrupting a running one
+         */
+        void cancel();
+    }
+}
@@ -0,0 +1,112 @@
+package ch.epfl.sdp.utilities;
+
+import java.util.PriorityQueue;
+
+/**
+ * Clock whose time only moves when advance() is called. The tasks that fall due are then run on
+ * the calling thread, in chronological order, each one seeing the time it was scheduled for.
+ * Hours of activity can thus be replayed in milliseconds, deterministically.
+ */
+public final class VirtualClock implements Clock {
+
+    private final PriorityQueue<Task> tasks = new PriorityQueue<>();
+    private long now;
+    // Breaks ties between tasks due at the same time: first scheduled, first run
+    private long scheduledCount = 0;
+
+    /**
+     * @param start initial time [ms since epoch]
+     */
+    public VirtualClock(long start) {
+        this.now = start;
+    }
+
+    @Override
+    public synchronized long currentTimeMillis() {
+        return now;
+    }
+
+    @Override
+    public Cancellable schedule(Runnable task, long delay) {
+        return add(task, delay, 0);
+    }
+
+    @Override
+    public Cancellable scheduleAtFixedRate(Runnable task, long initialDelay, long period) {
+        if (period <= 0) {
+            throw new IllegalArgumentException("The period must be positive");
+        }
+        return add(task, initialDelay, period);
+    }
+
+    private synchronized Cancellable add(Runnable runnable, long delay, long period) {
+        if (delay < 0) {
+            throw new IllegalArgumentException("The delay cannot be negative");
+        }
+        Task task = new Task(runnable, period);
+        task.setDue(now + delay, scheduledCount++);
+        tasks.add(task);
+        return () -> {
+            synchronized (this) {
+                tasks.remove(task);
+            }
+        };
+    }
+
+    /**
+     * Moves the time 'duration' ms forward, running the tasks that fall due meanwhile
+     */
+    public void advance(long duration) {
+        if (duration < 0) {
+            throw new IllegalArgumentException("Time cannot go backwards");
+        }
+        long target;
+        synchronized (this) {
+            target = now + duration;
+        }
+
+        while (true) {
+            Task next;
+            synchronized (this) {
+                next = tasks.peek();
+                if (next == null || target < next.due) {
+                    now = target;
+                    return;
+                }
+                tasks.poll();
+                now = next.due;
+                if (next.period > 0) {
+                    // Queued again before running, so that the task can cancel itself
+                    next.setDue(next.due + next.period, scheduledCount++);
+                    tasks.add(next);
+                }
+            }
+            // Outside of the lock: the task may read the time or schedule other tasks
+            next.runnable.run();
+        }
+    }
+
+    // Only modified while out of the queue, under the lock of the clock
+    private static final class Task implements Comparable<Task> {
+        private final Runnable runnable;
+        private final long period;
+        private long due;
+        private long order;
+
+        private Task(Runnable runnable, long period) {
+            this.runnable = runnable;
+            this.period = period;
+        }
+
+        private void setDue(long due, long order) {
+            this.due = due;
+            this.order = order;
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            int byDue = Long.compare(due, other.due);
+            return byDue != 0 ? byDue : Long.compare(order, other.order);
+        }
+    }
+}